@@ -0,0 +1,70 @@
+package io.github.ossnass.jpa99.benchmarks;
+
+import io.github.ossnass.jpa99.ConnectionPoolConfig;
+import io.github.ossnass.jpa99.H2Adapter;
+import io.github.ossnass.jpa99.UserManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Logs in to a fresh in-memory H2 database for each benchmark trial
+ */
+final class BenchmarkDatabase {
+
+    static final String PERSISTENCE_UNIT = "benchmarkPU";
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Logs in to a new in-memory database, the pool keeps a connection open so the database lives until {@link BenchmarkDatabase#logOut()}
+     *
+     * @param database the name of the database
+     * @return the item repository
+     */
+    static ItemRepository logIn(String database) {
+        var adapter = new H2Adapter();
+        adapter.getExtraProperties().put("Mode", "memory");
+        var um = UserManager.getUserManager()
+                .setPackageList(new String[]{BenchmarkDatabase.class.getPackageName()})
+                .setConnectionPoolConfig(new ConnectionPoolConfig().setMinSize(1).setMaxSize(4))
+                .setDatabaseAdapter(adapter)
+                .setPersistenceUnitName(PERSISTENCE_UNIT)
+                .setDatabaseURL("", 0, database);
+        if (!um.logIn("", ""))
+            throw new IllegalStateException("Could not log in to " + database, um.getLastException());
+        return um.getRepository(ItemRepository.class);
+    }
+
+    static void logOut() {
+        UserManager.getUserManager().logOut();
+    }
+
+    /**
+     * Creates new, unsaved items
+     *
+     * @param count the number of items
+     * @return the items
+     */
+    static List<Item> newItems(int count) {
+        var items = new ArrayList<Item>(count);
+        for (int i = 0; i < count; i++)
+            items.add(new Item().setName("item-" + i).setQuantity(i % 100));
+        return items;
+    }
+
+    /**
+     * Saves new items and returns their ids
+     *
+     * @param repository the item repository
+     * @param count      the number of items
+     * @return the ids of the saved items
+     */
+    static List<Long> insertItems(ItemRepository repository, int count) {
+        var ids = new ArrayList<Long>(count);
+        for (var item : repository.saveAndFlushAll(newItems(count)))
+            ids.add(item.getId());
+        return ids;
+    }
+}
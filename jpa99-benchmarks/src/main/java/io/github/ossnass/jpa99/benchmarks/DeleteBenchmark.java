@@ -0,0 +1,45 @@
+package io.github.ossnass.jpa99.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ItemRepository#deleteAllById(List)}, the items are inserted again before each call
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeleteBenchmark {
+
+    @Param({"100", "1000"})
+    public int items;
+
+    private ItemRepository repository;
+    private List<Long> ids;
+
+    @Setup(Level.Trial)
+    public void logIn() {
+        repository = BenchmarkDatabase.logIn("delete");
+        repository.setBatchSize(500);
+    }
+
+    @Setup(Level.Invocation)
+    public void insertItems() {
+        ids = BenchmarkDatabase.insertItems(repository, items);
+    }
+
+    @TearDown(Level.Trial)
+    public void logOut() {
+        BenchmarkDatabase.logOut();
+    }
+
+    @Benchmark
+    public void deleteAllById() {
+        repository.deleteAllById(ids);
+    }
+}
@@ -0,0 +1,61 @@
+package io.github.ossnass.jpa99.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ItemRepository#findById(Object)} and {@link ItemRepository#findAllById(List)} on a populated table
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FindBenchmark {
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"100"})
+    public int idsPerLookup;
+
+    private ItemRepository repository;
+    private List<Long> ids;
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void logIn() {
+        repository = BenchmarkDatabase.logIn("find");
+        repository.setBatchSize(500);
+        ids = BenchmarkDatabase.insertItems(repository, rows);
+        random = new SplittableRandom(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void logOut() {
+        BenchmarkDatabase.logOut();
+    }
+
+    private Long randomId() {
+        return ids.get(random.nextInt(ids.size()));
+    }
+
+    @Benchmark
+    public Optional<Item> findById() {
+        return repository.findById(randomId());
+    }
+
+    @Benchmark
+    public List<Item> findAllById() {
+        var lookup = new ArrayList<Long>(idsPerLookup);
+        for (int i = 0; i < idsPerLookup; i++)
+            lookup.add(randomId());
+        return repository.findAllById(lookup);
+    }
+}
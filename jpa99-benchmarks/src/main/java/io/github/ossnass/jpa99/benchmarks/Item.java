@@ -0,0 +1,47 @@
+package io.github.ossnass.jpa99.benchmarks;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = "Item")
+public class Item {
+
+    private Long id;
+    private String name;
+    private int quantity;
+
+    @Id
+    @Basic
+    @Column(name = "id", nullable = false)
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    public Long getId() {
+        return id;
+    }
+
+    public Item setId(Long id) {
+        this.id = id;
+        return this;
+    }
+
+    @Basic
+    @Column(name = "name", length = 50, nullable = false)
+    public String getName() {
+        return name;
+    }
+
+    public Item setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    @Basic
+    @Column(name = "quantity", nullable = false)
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public Item setQuantity(int quantity) {
+        this.quantity = quantity;
+        return this;
+    }
+}
@@ -0,0 +1,17 @@
+package io.github.ossnass.jpa99.benchmarks;
+
+import io.github.ossnass.jpa99.JPARepository;
+import io.github.ossnass.jpa99.Repository;
+
+@Repository("Item")
+public class ItemRepository extends JPARepository<Item, Long> {
+    @Override
+    public Class<Item> entityClass() {
+        return Item.class;
+    }
+
+    @Override
+    public Class<Long> idClass() {
+        return Long.class;
+    }
+}
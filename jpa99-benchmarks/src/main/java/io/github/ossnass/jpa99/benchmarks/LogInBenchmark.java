@@ -0,0 +1,59 @@
+package io.github.ossnass.jpa99.benchmarks;
+
+import io.github.ossnass.jpa99.RepositoryIndexProcessor;
+import io.github.ossnass.jpa99.UserManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a cold {@link UserManager#logIn(String, String)}: creating the pool and the EntityManagerFactory,
+ * acquiring the roles and finding the repositories, each fork logs in only a few times so the JVM stays cold.
+ * <p>
+ * The repositories are found with the index generated by {@link RepositoryIndexProcessor} when compiling the benchmarks,
+ * or with the index hidden, as if the processor were disabled, so the package is scanned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 5)
+@Fork(10)
+public class LogInBenchmark {
+
+    @Param({"true", "false"})
+    public boolean repositoryIndex;
+
+    private int logIns;
+    private ClassLoader loader;
+
+    @Setup(Level.Invocation)
+    public void hideIndex() {
+        var thread = Thread.currentThread();
+        loader = thread.getContextClassLoader();
+        if (!repositoryIndex)
+            thread.setContextClassLoader(new ClassLoader(loader) {
+                @Override
+                public Enumeration<URL> getResources(String name) throws IOException {
+                    if (name.equals(RepositoryIndexProcessor.INDEX_LOCATION))
+                        return Collections.emptyEnumeration();
+                    return super.getResources(name);
+                }
+            });
+    }
+
+    @TearDown(Level.Invocation)
+    public void logOut() {
+        BenchmarkDatabase.logOut();
+        Thread.currentThread().setContextClassLoader(loader);
+    }
+
+    @Benchmark
+    public ItemRepository logIn() {
+        return BenchmarkDatabase.logIn("login" + logIns++);
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.ossnass.jpa99.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saving items with {@link ItemRepository#saveAndFlushAll(List)} at several batch sizes, to compare with {@link SaveBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveAllBenchmark {
+
+    @Param({"1000"})
+    public int items;
+
+    @Param({"1", "50", "500"})
+    public int batchSize;
+
+    private ItemRepository repository;
+    private List<Item> pending;
+
+    @Setup(Level.Trial)
+    public void logIn() {
+        repository = BenchmarkDatabase.logIn("saveall");
+        repository.setBatchSize(batchSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void createItems() {
+        pending = BenchmarkDatabase.newItems(items);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearTable() {
+        repository.deleteEverything();
+    }
+
+    @TearDown(Level.Trial)
+    public void logOut() {
+        BenchmarkDatabase.logOut();
+    }
+
+    @Benchmark
+    public List<Item> saveAndFlushAll() {
+        return repository.saveAndFlushAll(pending);
+    }
+}
@@ -0,0 +1,52 @@
+package io.github.ossnass.jpa99.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saving items one by one with {@link ItemRepository#saveAndFlush(Object)}, to compare with {@link SaveAllBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveBenchmark {
+
+    @Param({"1000"})
+    public int items;
+
+    private ItemRepository repository;
+    private List<Item> pending;
+
+    @Setup(Level.Trial)
+    public void logIn() {
+        repository = BenchmarkDatabase.logIn("save");
+    }
+
+    @Setup(Level.Invocation)
+    public void createItems() {
+        pending = BenchmarkDatabase.newItems(items);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearTable() {
+        repository.deleteEverything();
+    }
+
+    @TearDown(Level.Trial)
+    public void logOut() {
+        BenchmarkDatabase.logOut();
+    }
+
+    @Benchmark
+    public Item saveAndFlush() {
+        Item last = null;
+        for (var item : pending)
+            last = repository.saveAndFlush(item);
+        return last;
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.ossnass.jpa99.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Jinq queries built from {@link ItemRepository#createStream()}, including the translation of the lambdas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamBenchmark {
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"42"})
+    public int quantity;
+
+    private ItemRepository repository;
+
+    @Setup(Level.Trial)
+    public void logIn() {
+        repository = BenchmarkDatabase.logIn("stream");
+        repository.setBatchSize(500);
+        BenchmarkDatabase.insertItems(repository, rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void logOut() {
+        BenchmarkDatabase.logOut();
+    }
+
+    @Benchmark
+    public long count() {
+        return repository.createStream().count();
+    }
+
+    @Benchmark
+    public long filteredCount() {
+        var wanted = quantity;
+        return repository.createStream().where(item -> item.getQuantity() == wanted).count();
+    }
+
+    @Benchmark
+    public List<Item> filteredList() {
+        var wanted = quantity;
+        return repository.createStream().where(item -> item.getQuantity() == wanted).toList();
+    }
+}
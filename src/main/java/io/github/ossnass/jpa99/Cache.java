@@ -0,0 +1,62 @@
+package io.github.ossnass.jpa99;
+
+/**
+ * A bounded in-memory cache with expiration, used by {@link JPARepository} to cache entities
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+interface Cache<K, V> {
+
+    /**
+     * Returns the value cached for a key
+     *
+     * @param key the key
+     * @return the cached value, null if not cached or expired
+     */
+    V get(K key);
+
+    /**
+     * Caches a value, evicting other values if the cache is full
+     *
+     * @param key   the key
+     * @param value the value, cannot be null
+     */
+    void put(K key, V value);
+
+    /**
+     * Returns the number of invalidations so far, to be passed to {@link Cache#put(Object, Object, long)}
+     *
+     * @return the number of invalidations so far
+     */
+    long generation();
+
+    /**
+     * Caches a value read from the database, unless a value was invalidated since the read started,
+     * so an entity written while it was read is not cached in its older state
+     *
+     * @param key        the key
+     * @param value      the value, cannot be null
+     * @param generation the value of {@link Cache#generation()} before the read
+     */
+    void put(K key, V value, long generation);
+
+    /**
+     * Removes the value cached for a key
+     *
+     * @param key the key
+     */
+    void invalidate(K key);
+
+    /**
+     * Removes all the cached values
+     */
+    void clear();
+
+    /**
+     * Returns a snapshot of the statistics of the cache
+     *
+     * @return a snapshot of the statistics of the cache
+     */
+    CacheStatistics getStatistics();
+}
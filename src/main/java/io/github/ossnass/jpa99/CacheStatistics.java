@@ -0,0 +1,80 @@
+package io.github.ossnass.jpa99;
+
+/**
+ * A snapshot of the statistics of a cache, used to size it
+ */
+public class CacheStatistics {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final int size;
+
+    CacheStatistics(long hits, long misses, long evictions, long expirations, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of lookups answered by the cache
+     *
+     * @return the number of lookups answered by the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups not answered by the cache
+     *
+     * @return the number of lookups not answered by the cache
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of values removed to make room for new ones
+     *
+     * @return the number of values removed to make room for new ones
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of values removed because they outlived their time to live
+     *
+     * @return the number of expired values
+     */
+    public long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * Returns the number of cached values
+     *
+     * @return the number of cached values
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the ratio of lookups answered by the cache
+     *
+     * @return the ratio of lookups answered by the cache, zero if there were no lookups
+     */
+    public double getHitRatio() {
+        var lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CacheStatistics{hits=%d, misses=%d, evictions=%d, expirations=%d, size=%d}", hits, misses, evictions, expirations, size);
+    }
+}
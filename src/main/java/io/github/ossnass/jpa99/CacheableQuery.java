@@ -0,0 +1,28 @@
+package io.github.ossnass.jpa99;
+
+import org.jinq.jpa.JPAJinqStream;
+
+import java.io.Serializable;
+
+/**
+ * A Jinq query whose result can be cached by {@link JPARepository#queryCached(CacheableQuery)}, for example
+ * <pre>
+ * repository.queryCached(stream -&gt; stream.where(person -&gt; person.getAge() &gt; minAge).count());
+ * </pre>
+ * The query is serializable so the values it captures, <code>minAge</code> in the example, are part of the key of the cached result.
+ * The captured values should therefore implement {@link Object#equals(Object)} and {@link Object#hashCode()}.
+ *
+ * @param <E> the type of the queried entities
+ * @param <R> the type of the result
+ */
+@FunctionalInterface
+public interface CacheableQuery<E, R> extends Serializable {
+
+    /**
+     * Runs the query, ending with a terminal operation such as {@link JPAJinqStream#toList()} or {@link JPAJinqStream#count()}
+     *
+     * @param stream the stream of the entities
+     * @return the result of the query
+     */
+    R query(JPAJinqStream<E> stream);
+}
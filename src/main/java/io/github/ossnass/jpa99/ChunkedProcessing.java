@@ -0,0 +1,150 @@
+package io.github.ossnass.jpa99;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * A running {@link JPARepository#processInChunks(java.util.function.Consumer, ChunkedProcessingConfig)},
+ * used to follow its progress, cancel it and wait for its end.
+ */
+public class ChunkedProcessing {
+
+    private final CompletableFuture<Long> result = new CompletableFuture<>();
+    private final AtomicLong processedEntities = new AtomicLong();
+    private final AtomicInteger processedChunks = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+    private volatile boolean cancelled;
+
+    ChunkedProcessing() {
+    }
+
+    /**
+     * Starts the workers, each one taking the next chunk until there are none left
+     *
+     * @param config the configuration of the processing
+     * @param chunks supplies the next chunk to process, null once all the chunks were supplied, must be thread safe
+     * @param work   processes a chunk and returns the number of processed entities
+     * @param <C>    the type of the chunks
+     * @return this processing
+     */
+    <C> ChunkedProcessing start(ChunkedProcessingConfig config, Supplier<C> chunks, ToIntFunction<C> work) {
+        var executor = config.getExecutor() != null ? config.getExecutor() : UserManager.getUserManager().getExecutor();
+        var running = new AtomicInteger(config.getParallelism());
+        for (int i = 0; i < config.getParallelism(); i++) {
+            Runnable worker = () -> {
+                try {
+                    C chunk;
+                    while (!cancelled && !result.isDone() && (chunk = chunks.get()) != null) {
+                        processedEntities.addAndGet(process(chunk, work, config.getMaxRetries()));
+                        processedChunks.incrementAndGet();
+                        var listener = config.getProgressListener();
+                        if (listener != null)
+                            listener.accept(this);
+                    }
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    finish(running);
+                }
+            };
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+                finish(running);
+            }
+        }
+        return this;
+    }
+
+    private <C> int process(C chunk, ToIntFunction<C> work, int maxRetries) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return work.applyAsInt(chunk);
+            } catch (RuntimeException e) {
+                if (attempt >= maxRetries || cancelled)
+                    throw e;
+                retries.incrementAndGet();
+            }
+        }
+    }
+
+    private void finish(AtomicInteger running) {
+        if (running.decrementAndGet() > 0)
+            return;
+        if (cancelled)
+            result.completeExceptionally(new CancellationException("The processing was cancelled"));
+        else
+            result.complete(processedEntities.get());
+    }
+
+    /**
+     * Stops the processing, the chunks being processed are completed but no other chunk is started
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Returns whether the processing was cancelled
+     *
+     * @return whether the processing was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns whether the processing ended, because all the chunks were processed, it failed or it was cancelled
+     *
+     * @return whether the processing ended
+     */
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    /**
+     * Returns the number of entities processed so far
+     *
+     * @return the number of entities processed so far
+     */
+    public long getProcessedEntities() {
+        return processedEntities.get();
+    }
+
+    /**
+     * Returns the number of chunks processed so far
+     *
+     * @return the number of chunks processed so far
+     */
+    public int getProcessedChunks() {
+        return processedChunks.get();
+    }
+
+    /**
+     * Returns the number of times a failed chunk was retried so far
+     *
+     * @return the number of retries so far
+     */
+    public int getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Returns the end of the processing, completed with the number of processed entities once all the chunks are processed.
+     * It completes exceptionally with the error of a chunk which failed after its retries, in which case the other chunks are not started,
+     * or with a {@link CancellationException} if the processing was cancelled.
+     * <p>
+     * Cancelling the returned future does not stop the processing, use {@link ChunkedProcessing#cancel()}.
+     *
+     * @return the end of the processing
+     */
+    public CompletableFuture<Long> getResult() {
+        return result.copy();
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.ossnass.jpa99;
+
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * The configuration of {@link JPARepository#processInChunks(Consumer, ChunkedProcessingConfig)}
+ */
+public class ChunkedProcessingConfig {
+
+    private int chunkSize = 1000;
+    private String keyAttribute;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int maxRetries = 2;
+    private Executor executor;
+    private Consumer<ChunkedProcessing> progressListener;
+
+    /**
+     * Returns the number of entities processed per chunk
+     *
+     * @return the number of entities processed per chunk
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Changes the number of entities processed per chunk, each chunk is loaded and processed in its own transaction
+     *
+     * @param chunkSize the number of entities processed per chunk
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public ChunkedProcessingConfig setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("The chunk size must be positive");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Returns the attribute the entities are split on
+     *
+     * @return the attribute the entities are split on, null for the id
+     */
+    public String getKeyAttribute() {
+        return keyAttribute;
+    }
+
+    /**
+     * Changes the attribute the entities are split on, which should be indexed as it is used to order and bound each chunk.
+     * Entities whose key is null are not processed.
+     *
+     * @param keyAttribute the basic attribute the entities are split on, null for the id
+     * @return the modified configuration
+     */
+    public ChunkedProcessingConfig setKeyAttribute(String keyAttribute) {
+        this.keyAttribute = keyAttribute;
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of chunks processed at the same time
+     *
+     * @return the maximum number of chunks processed at the same time
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Changes the maximum number of chunks processed at the same time, each one holding a database connection, defaults to the number of processors
+     *
+     * @param parallelism the maximum number of chunks processed at the same time
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public ChunkedProcessingConfig setParallelism(int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("The parallelism must be positive");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Returns how many times a failed chunk is retried
+     *
+     * @return how many times a failed chunk is retried
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Changes how many times a failed chunk is retried before the processing fails
+     *
+     * @param maxRetries how many times a failed chunk is retried, 0 to never retry
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public ChunkedProcessingConfig setMaxRetries(int maxRetries) {
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("The number of retries cannot be negative");
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Returns the executor processing the chunks
+     *
+     * @return the executor processing the chunks, null for {@link UserManager#getExecutor()}
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Changes the executor processing the chunks, for example a {@link java.util.concurrent.ForkJoinPool}
+     *
+     * @param executor the executor processing the chunks, null for {@link UserManager#getExecutor()}
+     * @return the modified configuration
+     */
+    public ChunkedProcessingConfig setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Returns the listener called after each processed chunk
+     *
+     * @return the listener called after each processed chunk, null if none
+     */
+    public Consumer<ChunkedProcessing> getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Changes the listener called after each processed chunk, from the thread which processed it
+     *
+     * @param progressListener the listener called after each processed chunk, null to remove it
+     * @return the modified configuration
+     */
+    public ChunkedProcessingConfig setProgressListener(Consumer<ChunkedProcessing> progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+}
@@ -0,0 +1,568 @@
+package io.github.ossnass.jpa99;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * A lightweight pool of JDBC connections, created by {@link UserManager} when logging in
+ * if a {@link ConnectionPoolConfig} is set, and handed to the persistence provider as its non-JTA data source.
+ * <p>
+ * Idle connections are reused most recently used first, closed after {@link ConnectionPoolConfig#getIdleTimeout()}
+ * down to {@link ConnectionPoolConfig#getMinSize()}, and validated using {@link DBAdapter#getValidationQuery()}
+ * when they have been idle longer than {@link ConnectionPoolConfig#getValidationInterval()}.
+ */
+public class ConnectionPool implements DataSource, AutoCloseable {
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final String validationQuery;
+    private final ConnectionPoolConfig config;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private int total;
+    private int active;
+    private boolean closed;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private PrintWriter logWriter;
+
+    /**
+     * Creates a new pool and opens {@link ConnectionPoolConfig#getMinSize()} connections
+     *
+     * @param url      the URL of the database
+     * @param username the username
+     * @param password the password
+     * @param adapter  the adapter of the database
+     * @param config   the configuration of the pool
+     * @throws SQLException             if the initial connections cannot be opened
+     * @throws IllegalArgumentException if the minimum size is larger than the maximum size
+     */
+    public ConnectionPool(String url, String username, String password, DBAdapter adapter, ConnectionPoolConfig config) throws SQLException {
+        if (config.getMinSize() > config.getMaxSize())
+            throw new IllegalArgumentException("The minimum size of the pool cannot be larger than its maximum size");
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.validationQuery = adapter.getValidationQuery();
+        this.config = config;
+        try {
+            Class.forName(adapter.getDriver());
+        } catch (ClassNotFoundException e) {
+            // the driver may still be found by DriverManager using the service loader
+        }
+        prime();
+        var period = Math.max(1000, config.getIdleTimeout().toMillis() / 2);
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "jpa99-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens connections until the pool holds at least {@link ConnectionPoolConfig#getMinSize()} connections
+     *
+     * @throws SQLException if a connection cannot be opened
+     */
+    public void prime() throws SQLException {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || total >= config.getMinSize())
+                    return;
+                total++;
+            } finally {
+                lock.unlock();
+            }
+            PooledConnection connection;
+            try {
+                connection = open();
+            } catch (SQLException e) {
+                discardSlot();
+                throw e;
+            }
+            lock.lock();
+            try {
+                idle.addLast(connection);
+                released.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        var start = System.nanoTime();
+        var deadline = start + config.getAcquireTimeout().toNanos();
+        while (true) {
+            PooledConnection candidate = null;
+            boolean create = false;
+            lock.lock();
+            try {
+                while (!closed && idle.isEmpty() && total >= config.getMaxSize()) {
+                    var remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts.incrementAndGet();
+                        throw new SQLTimeoutException(String.format("Could not acquire a connection within %d ms, all %d connections are in use",
+                                config.getAcquireTimeout().toMillis(), config.getMaxSize()));
+                    }
+                    try {
+                        released.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection", e);
+                    }
+                }
+                if (closed)
+                    throw new SQLException("The connection pool is closed");
+                candidate = idle.pollFirst();
+                if (candidate == null) {
+                    total++;
+                    create = true;
+                }
+                active++;
+            } finally {
+                lock.unlock();
+            }
+            if (create) {
+                try {
+                    candidate = open();
+                } catch (SQLException e) {
+                    lock.lock();
+                    try {
+                        active--;
+                    } finally {
+                        lock.unlock();
+                    }
+                    discardSlot();
+                    throw e;
+                }
+            } else if (!isValid(candidate)) {
+                lock.lock();
+                try {
+                    active--;
+                } finally {
+                    lock.unlock();
+                }
+                destroy(candidate);
+                continue;
+            }
+            acquired.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - start);
+            return candidate.lease();
+        }
+    }
+
+    /**
+     * Acquires a connection from the pool, only the credentials used to create the pool are accepted
+     *
+     * @param username the username
+     * @param password the password
+     * @return a pooled connection
+     * @throws SQLException if the credentials differ from the pool's or no connection could be acquired
+     */
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        if (!Objects.equals(username, this.username) || !Objects.equals(password, this.password))
+            throw new SQLFeatureNotSupportedException("The pool only holds connections of the logged in user");
+        return getConnection();
+    }
+
+    /**
+     * Returns a statement prepared on the physical connection behind a connection of this pool, preparing it on first use.
+     * <p>
+     * The statement is kept with the physical connection and closed when the pool closes the connection,
+     * so the caller must not close it. Its parameters are cleared before it is returned.
+     *
+     * @param connection a connection handed out by {@link ConnectionPool#getConnection()} and not given back yet
+     * @param sql        the SQL of the statement
+     * @return the prepared statement, null if the connection was not handed out by this pool
+     * @throws SQLException if the connection was given back or the statement cannot be prepared
+     */
+    PreparedStatement prepareCached(Connection connection, String sql) throws SQLException {
+        if (!Proxy.isProxyClass(connection.getClass()))
+            return null;
+        var handler = Proxy.getInvocationHandler(connection);
+        if (!(handler instanceof Lease) || ((Lease) handler).pool() != this)
+            return null;
+        var lease = (Lease) handler;
+        lease.checkLeased();
+        var statements = lease.connection.statements;
+        var prepared = statements.get(sql);
+        if (prepared == null || prepared.isClosed()) {
+            prepared = lease.connection.physical.prepareStatement(sql);
+            statements.put(sql, prepared);
+        }
+        prepared.clearParameters();
+        return prepared;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the pool
+     *
+     * @return a snapshot of the statistics of the pool
+     */
+    public Statistics getStatistics() {
+        lock.lock();
+        try {
+            return new Statistics(total, active, idle.size(), acquired.get(), created.get(), destroyed.get(), timeouts.get(), waitNanos.get());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the pool and all its idle connections, leased connections are closed when given back
+     */
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        Deque<PooledConnection> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            idle.clear();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        toClose.forEach(this::destroy);
+    }
+
+    private PooledConnection open() throws SQLException {
+        var connection = DriverManager.getConnection(url, username, password);
+        created.incrementAndGet();
+        return new PooledConnection(connection);
+    }
+
+    private boolean isValid(PooledConnection connection) {
+        if (System.nanoTime() - connection.lastUsed < config.getValidationInterval().toNanos())
+            return true;
+        try {
+            if (validationQuery == null)
+                return connection.physical.isValid((int) Math.max(1, config.getAcquireTimeout().toSeconds()));
+            try (var statement = connection.physical.createStatement()) {
+                statement.execute(validationQuery);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection connection) {
+        var broken = false;
+        try {
+            if (!connection.physical.getAutoCommit()) {
+                connection.physical.rollback();
+                connection.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            broken = true;
+        }
+        lock.lock();
+        try {
+            active--;
+            if (!closed && !broken) {
+                connection.lastUsed = System.nanoTime();
+                idle.addFirst(connection);
+                released.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        destroy(connection);
+    }
+
+    private void evictIdle() {
+        var expired = new ArrayDeque<PooledConnection>();
+        var timeout = config.getIdleTimeout().toNanos();
+        lock.lock();
+        try {
+            var now = System.nanoTime();
+            var iterator = idle.descendingIterator();
+            while (iterator.hasNext() && total - expired.size() > config.getMinSize()) {
+                var connection = iterator.next();
+                if (now - connection.lastUsed > timeout) {
+                    iterator.remove();
+                    expired.add(connection);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        expired.forEach(this::destroy);
+        try {
+            prime();
+        } catch (SQLException e) {
+            // the pool is refilled on the next run or on demand
+        }
+    }
+
+    private void destroy(PooledConnection connection) {
+        for (var statement : connection.statements.values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // the connection is closed right after, which closes its statements
+            }
+        }
+        connection.statements.clear();
+        try {
+            connection.physical.close();
+        } catch (SQLException e) {
+            // the connection is discarded anyway
+        }
+        destroyed.incrementAndGet();
+        discardSlot();
+    }
+
+    private void discardSlot() {
+        lock.lock();
+        try {
+            total--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return DriverManager.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("The connection pool does not use java.util.logging");
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this))
+            return iface.cast(this);
+        throw new SQLException("The connection pool does not wrap " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * A physical connection owned by the pool, handed out wrapped in a proxy that gives it back when closed
+     */
+    private class PooledConnection {
+        private final Connection physical;
+        /**
+         * The statements prepared by {@link ConnectionPool#prepareCached(Connection, String)}, mapped by their SQL.
+         * A physical connection is leased by one thread at a time, so the map is not synchronized
+         */
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long lastUsed;
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.lastUsed = System.nanoTime();
+        }
+
+        private Connection lease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, new Lease(this));
+        }
+    }
+
+    /**
+     * The handler of a leased connection, forwarding the calls to the physical connection until it is given back
+     */
+    private class Lease implements InvocationHandler {
+        private final PooledConnection connection;
+        private boolean leased = true;
+
+        private Lease(PooledConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (leased) {
+                        leased = false;
+                        release(connection);
+                    }
+                    return null;
+                case "isClosed":
+                    return !leased || connection.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + connection.physical;
+                default:
+                    checkLeased();
+                    try {
+                        return method.invoke(connection.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+
+        private ConnectionPool pool() {
+            return ConnectionPool.this;
+        }
+
+        private void checkLeased() throws SQLException {
+            if (!leased)
+                throw new SQLException("The connection has been given back to the pool");
+        }
+    }
+
+    /**
+     * A snapshot of the statistics of a {@link ConnectionPool}
+     */
+    public static class Statistics {
+        private final int total;
+        private final int active;
+        private final int idle;
+        private final long acquired;
+        private final long created;
+        private final long destroyed;
+        private final long timeouts;
+        private final long waitNanos;
+
+        Statistics(int total, int active, int idle, long acquired, long created, long destroyed, long timeouts, long waitNanos) {
+            this.total = total;
+            this.active = active;
+            this.idle = idle;
+            this.acquired = acquired;
+            this.created = created;
+            this.destroyed = destroyed;
+            this.timeouts = timeouts;
+            this.waitNanos = waitNanos;
+        }
+
+        /**
+         * Returns the number of open connections, including the ones being opened
+         *
+         * @return the number of open connections
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns the number of connections in use
+         *
+         * @return the number of connections in use
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * Returns the number of idle connections
+         *
+         * @return the number of idle connections
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * Returns the number of connections handed out since the pool was created
+         *
+         * @return the number of connections handed out
+         */
+        public long getAcquired() {
+            return acquired;
+        }
+
+        /**
+         * Returns the number of physical connections opened since the pool was created
+         *
+         * @return the number of physical connections opened
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Returns the number of physical connections closed since the pool was created
+         *
+         * @return the number of physical connections closed
+         */
+        public long getDestroyed() {
+            return destroyed;
+        }
+
+        /**
+         * Returns the number of times no connection could be acquired in time
+         *
+         * @return the number of acquire timeouts
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * Returns the average time spent acquiring a connection in nanoseconds
+         *
+         * @return the average time spent acquiring a connection in nanoseconds
+         */
+        public long getAverageWaitNanos() {
+            return acquired == 0 ? 0 : waitNanos / acquired;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.ossnass.jpa99;
+
+import java.time.Duration;
+
+/**
+ * The configuration of the connection pool managed by {@link UserManager}, see {@link UserManager#setConnectionPoolConfig(ConnectionPoolConfig)}
+ */
+public class ConnectionPoolConfig {
+
+    private int minSize = 2;
+    private int maxSize = 10;
+    private Duration idleTimeout = Duration.ofMinutes(10);
+    private Duration acquireTimeout = Duration.ofSeconds(30);
+    private Duration validationInterval = Duration.ofSeconds(30);
+
+    /**
+     * Returns the number of connections kept open even when idle
+     *
+     * @return the number of connections kept open even when idle
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Changes the number of connections kept open even when idle
+     *
+     * @param minSize the number of connections kept open even when idle
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public ConnectionPoolConfig setMinSize(int minSize) {
+        if (minSize < 0)
+            throw new IllegalArgumentException("The minimum size of the pool cannot be negative");
+        this.minSize = minSize;
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of open connections
+     *
+     * @return the maximum number of open connections
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of open connections
+     *
+     * @param maxSize the maximum number of open connections
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public ConnectionPoolConfig setMaxSize(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("The maximum size of the pool must be positive");
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Returns how long a connection can stay idle before being closed
+     *
+     * @return how long a connection can stay idle before being closed
+     */
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Changes how long a connection can stay idle before being closed, connections below the minimum size are never closed
+     *
+     * @param idleTimeout how long a connection can stay idle before being closed
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the timeout is null or not positive
+     */
+    public ConnectionPoolConfig setIdleTimeout(Duration idleTimeout) {
+        if (idleTimeout == null || idleTimeout.isNegative() || idleTimeout.isZero())
+            throw new IllegalArgumentException("The idle timeout must be positive");
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /**
+     * Returns how long to wait for a free connection before failing
+     *
+     * @return how long to wait for a free connection before failing
+     */
+    public Duration getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    /**
+     * Changes how long to wait for a free connection before failing
+     *
+     * @param acquireTimeout how long to wait for a free connection before failing
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the timeout is null or negative
+     */
+    public ConnectionPoolConfig setAcquireTimeout(Duration acquireTimeout) {
+        if (acquireTimeout == null || acquireTimeout.isNegative())
+            throw new IllegalArgumentException("The acquire timeout cannot be negative");
+        this.acquireTimeout = acquireTimeout;
+        return this;
+    }
+
+    /**
+     * Returns how long a connection can stay idle before being validated again when acquired
+     *
+     * @return how long a connection can stay idle before being validated again when acquired
+     */
+    public Duration getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * Changes how long a connection can stay idle before being validated again when acquired.
+     * <p>
+     * The validation runs {@link DBAdapter#getValidationQuery()}, connections used recently are not validated to save a round trip.
+     *
+     * @param validationInterval how long a connection can stay idle before being validated
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the interval is null or negative
+     */
+    public ConnectionPoolConfig setValidationInterval(Duration validationInterval) {
+        if (validationInterval == null || validationInterval.isNegative())
+            throw new IllegalArgumentException("The validation interval cannot be negative");
+        this.validationInterval = validationInterval;
+        return this;
+    }
+}
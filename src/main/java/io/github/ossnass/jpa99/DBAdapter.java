@@ -1,24 +1,54 @@
 package io.github.ossnass.jpa99;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.IntFunction;
 
 /**
  * This class provides an abstraction layer over the needed elements to establish a connection with a database.
  * <p>
  * These elements include
  * <ol>
- *     <li>the query to change the user's password</li>
+ *     <li>the statement to change the user's password</li>
  *     <li>the query to acquire the user's roles</li>
  *     <li>The FQDN of the driver class</li>
  * </ol>
  */
 public abstract class DBAdapter {
+    /**
+     * The name of the query acquiring the roles of the logged user, without parameters, returning the roles in its first column
+     */
+    public static final String STATEMENT_ACQUIRE_USER_ROLES = "acquireUserRoles";
+    /**
+     * The name of the statement changing the password of a user, taking the username and the new password
+     */
+    public static final String STATEMENT_CHANGE_PASSWORD = "changePassword";
+
     /**
      * Extra set of properties specific to the database
      */
     protected Map<String, String> extraProperties = new HashMap<>();
 
+    /**
+     * The URLs of the read replicas of the database
+     */
+    private final List<String> readReplicaURLs = new ArrayList<>();
+
+    /**
+     * The statements registered by the user, mapped by their names
+     */
+    private final Map<String, NativeStatement> nativeStatements = new HashMap<>();
+
     /**
      * This method combines the database URL elements into the correct form for the connection
      * <p>
@@ -48,19 +78,61 @@ public abstract class DBAdapter {
     public abstract String[] availableExtraProperties();
 
     /**
-     * Returns the query used to change the user's password
+     * Returns the query used to change the user's password, formatted with the username and the password
      *
      * @return the query used to change the user's password
+     * @deprecated formatting the values into the SQL allows injections, use {@link DBAdapter#STATEMENT_CHANGE_PASSWORD}
+     * through {@link UserManager#changePassword(String, String)}
      */
+    @Deprecated
     public abstract String getChangeUserPassword();
 
     /**
-     * Returns the query used to acquire user's roles
+     * Returns the query used to acquire user's roles, used by the default {@link DBAdapter#STATEMENT_ACQUIRE_USER_ROLES}
      *
      * @return the query used to acquire user's roles
      */
     public abstract String getAcquireUserRoles();
 
+    /**
+     * Returns a named native statement, see {@link UserManager#queryNative(String, Object...)} and {@link UserManager#executeNative(String, Object...)}
+     * <p>
+     * The statements registered with {@link DBAdapter#registerNativeStatement(NativeStatement)} take precedence over the statements of the adapter.
+     *
+     * @param name the name of the statement
+     * @return the statement, null if there is none with this name
+     */
+    public NativeStatement getNativeStatement(String name) {
+        var statement = nativeStatements.get(name);
+        return statement != null ? statement : createNativeStatement(name);
+    }
+
+    /**
+     * Registers a named native statement, replacing the statement with the same name
+     *
+     * @param statement the statement
+     * @return the modified adapter
+     * @throws IllegalArgumentException if the statement is null
+     */
+    public DBAdapter registerNativeStatement(NativeStatement statement) {
+        if (statement == null)
+            throw new IllegalArgumentException("The statement cannot be null");
+        nativeStatements.put(statement.getName(), statement);
+        return this;
+    }
+
+    /**
+     * Creates the statements the adapter declares, the adapters override it to add their own statements such as {@link DBAdapter#STATEMENT_CHANGE_PASSWORD}
+     *
+     * @param name the name of the statement
+     * @return the statement, null if the adapter does not declare it
+     */
+    protected NativeStatement createNativeStatement(String name) {
+        if (STATEMENT_ACQUIRE_USER_ROLES.equals(name))
+            return new NativeStatement(name, getAcquireUserRoles());
+        return null;
+    }
+
     /**
      * Returns the FQDN of the database driver
      *
@@ -68,6 +140,240 @@ public abstract class DBAdapter {
      */
     public abstract String getDriver();
 
+    /**
+     * Returns the query used by {@link ConnectionPool} to check that an idle connection is still usable
+     *
+     * @return the validation query, null to rely on {@link java.sql.Connection#isValid(int)}
+     */
+    public String getValidationQuery() {
+        return null;
+    }
+
+    /**
+     * Returns the maximum number of bind parameters to use in a single query.
+     * <p>
+     * Used to split large <code>IN</code> lists into chunks, override it to match the limits of the database.
+     *
+     * @return the maximum number of bind parameters to use in a single query
+     */
+    public int getMaxQueryParameters() {
+        return 1000;
+    }
+
+    /**
+     * Inserts rows into a table as fast as the database allows, bypassing the JPA provider.
+     * <p>
+     * The default implementation sends batches of single row <code>INSERT</code> statements,
+     * the adapters override it with the bulk loading facility of their database.
+     * The caller owns the connection and the transaction.
+     *
+     * @param connection the connection to use
+     * @param table      the table to insert into
+     * @param columns    the columns to insert
+     * @param rows       the values of each row, in the order of the columns
+     * @return the number of inserted rows
+     * @throws SQLException if the rows cannot be inserted
+     */
+    public long bulkInsert(Connection connection, String table, List<String> columns, Iterator<Object[]> rows) throws SQLException {
+        var count = 0L;
+        try (var statement = connection.prepareStatement(insertStatement(table, columns, 1))) {
+            var batch = 0;
+            while (rows.hasNext()) {
+                bind(statement, 0, rows.next());
+                statement.addBatch();
+                count++;
+                if (++batch == 1000) {
+                    statement.executeBatch();
+                    batch = 0;
+                }
+            }
+            if (batch > 0)
+                statement.executeBatch();
+        }
+        return count;
+    }
+
+    /**
+     * Inserts rows into a table, or updates the rows whose key already exists, bypassing the JPA provider.
+     * <p>
+     * Each row is written by a single statement, so concurrent writers cannot race between reading and writing a row.
+     * The default implementation is not supported, the adapters override it with the upsert statement of their database.
+     * The caller owns the connection and the transaction.
+     *
+     * @param connection the connection to use
+     * @param table      the table to write into
+     * @param keyColumn  the column identifying the rows, which must be unique
+     * @param columns    the columns to write, including the key
+     * @param rows       the values of each row, in the order of the columns
+     * @return the number of inserted or updated rows
+     * @throws SQLFeatureNotSupportedException if the adapter does not support upserts
+     * @throws SQLException                    if the rows cannot be written
+     */
+    public long upsert(Connection connection, String table, String keyColumn, List<String> columns, Iterator<Object[]> rows) throws SQLException {
+        throw new SQLFeatureNotSupportedException(String.format("The adapter %s does not support upserts", getAdapterName()));
+    }
+
+    /**
+     * Moves the identity column of a table past its largest value, after rows were inserted with their ids
+     * such as by {@link JPARepository#importSnapshot(java.nio.file.Path)}, so the next generated ids do not collide with them.
+     * <p>
+     * The default implementation does nothing, the adapters override it for the databases whose identity columns
+     * are not moved by inserting explicit values.
+     * The caller owns the connection and the transaction, some databases commit it as the statement changes the table.
+     *
+     * @param connection the connection to use
+     * @param table      the table
+     * @param idColumn   the identity column of the table
+     * @throws SQLException if the identity column cannot be restarted
+     */
+    public void restartIdentity(Connection connection, String table, String idColumn) throws SQLException {
+    }
+
+    /**
+     * Creates an <code>INSERT</code> statement with one group of parameters per row
+     *
+     * @param table   the table to insert into
+     * @param columns the columns to insert
+     * @param rows    the number of rows inserted by the statement
+     * @return the SQL of the statement
+     */
+    protected static String insertStatement(String table, List<String> columns, int rows) {
+        return "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES " + parameterGroups(columns.size(), rows);
+    }
+
+    /**
+     * Creates the groups of parameters of a multi-row <code>VALUES</code> clause
+     *
+     * @param columns the number of columns of each row
+     * @param rows    the number of rows
+     * @return the groups of parameters, separated by commas
+     */
+    protected static String parameterGroups(int columns, int rows) {
+        var group = "(" + String.join(", ", Collections.nCopies(columns, "?")) + ")";
+        return String.join(", ", Collections.nCopies(rows, group));
+    }
+
+    /**
+     * Writes rows using multi-row statements, each holding up to 1000 rows and {@link DBAdapter#getMaxQueryParameters()} parameters
+     *
+     * @param connection the connection to use
+     * @param statement  creates the SQL of a statement writing the given number of rows
+     * @param columns    the number of columns of each row
+     * @param rows       the values of each row
+     * @param keyIndex   the index of the key of the rows, to keep only the last row of each key within a statement, -1 to keep all the rows
+     * @return the sum of the update counts of the statements
+     * @throws SQLException if the rows cannot be written
+     */
+    protected long executeMultiRow(Connection connection, IntFunction<String> statement, int columns, Iterator<Object[]> rows, int keyIndex) throws SQLException {
+        var rowsPerStatement = Math.max(1, Math.min(1000, getMaxQueryParameters() / columns));
+        var count = 0L;
+        var pending = new LinkedHashMap<Object, Object[]>();
+        var position = 0;
+        PreparedStatement full = null;
+        try {
+            while (rows.hasNext()) {
+                var row = rows.next();
+                pending.put(keyIndex < 0 ? position++ : row[keyIndex], row);
+                if (pending.size() == rowsPerStatement) {
+                    if (full == null)
+                        full = connection.prepareStatement(statement.apply(rowsPerStatement));
+                    count += execute(full, columns, pending.values());
+                    pending.clear();
+                }
+            }
+        } finally {
+            if (full != null)
+                full.close();
+        }
+        if (!pending.isEmpty()) {
+            try (var last = connection.prepareStatement(statement.apply(pending.size()))) {
+                count += execute(last, columns, pending.values());
+            }
+        }
+        return count;
+    }
+
+    private static int execute(PreparedStatement statement, int columns, Collection<Object[]> rows) throws SQLException {
+        var offset = 0;
+        for (var row : rows) {
+            bind(statement, offset, row);
+            offset += columns;
+        }
+        return statement.executeUpdate();
+    }
+
+    /**
+     * Binds the values of a row to the parameters of a statement
+     *
+     * @param statement the statement
+     * @param offset    the number of parameters before the row
+     * @param row       the values of the row
+     * @throws SQLException if a value cannot be bound
+     */
+    protected static void bind(PreparedStatement statement, int offset, Object[] row) throws SQLException {
+        for (int i = 0; i < row.length; i++)
+            statement.setObject(offset + i + 1, row[i]);
+    }
+
+    /**
+     * Finds a class of the JDBC driver which a connection implements or wraps, to use the features of the driver reflectively.
+     * <p>
+     * The connection may be a wrapper, such as the pooled connections of {@link ConnectionPool} whose class is not loaded by the driver,
+     * so the class is loaded by the class loader of the unwrapped connection, or by the class loader of the adapter.
+     *
+     * @param connection the connection
+     * @param className  the FQDN of the class of the driver
+     * @return the class, null if the driver cannot be loaded or the connection does not wrap an instance of it
+     * @throws SQLException if the connection cannot be unwrapped
+     */
+    protected Class<?> findDriverClass(Connection connection, String className) throws SQLException {
+        var physical = connection.unwrap(Connection.class);
+        for (var loader : new ClassLoader[]{physical.getClass().getClassLoader(), getClass().getClassLoader()}) {
+            try {
+                var classz = Class.forName(className, true, loader);
+                return connection.isWrapperFor(classz) ? classz : null;
+            } catch (ClassNotFoundException e) {
+                // the driver is not visible from this class loader, try the next one
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a read replica of the database.
+     * <p>
+     * When logging in, {@link UserManager} connects to each replica, and the reads of the repositories are sent to the replicas
+     * while the writes are sent to the primary database. The URL is created using {@link DBAdapter#createURL(String, int, String)}.
+     *
+     * @param host     the host of the replica
+     * @param port     the port of the replica
+     * @param database the name of the database on the replica
+     * @return the modified adapter
+     */
+    public DBAdapter addReadReplica(String host, int port, String database) {
+        readReplicaURLs.add(createURL(host, port, database));
+        return this;
+    }
+
+    /**
+     * Removes all the read replicas, so every query is sent to the primary database
+     *
+     * @return the modified adapter
+     */
+    public DBAdapter clearReadReplicas() {
+        readReplicaURLs.clear();
+        return this;
+    }
+
+    /**
+     * Returns the URLs of the read replicas of the database
+     *
+     * @return the URLs of the read replicas, empty if there are none
+     */
+    public List<String> getReadReplicaURLs() {
+        return Collections.unmodifiableList(readReplicaURLs);
+    }
+
     /**
      * Returns the current set of used extra properties
      *
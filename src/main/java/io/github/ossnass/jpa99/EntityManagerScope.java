@@ -0,0 +1,29 @@
+package io.github.ossnass.jpa99;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Defines how the {@link EntityManager} used by a {@link JPARepository} is acquired and released.
+ * <p>
+ * The scope is configured using {@link UserManager#setEntityManagerScope(EntityManagerScope)}
+ */
+public enum EntityManagerScope {
+    /**
+     * Each repository owns a single {@link EntityManager} created in its constructor and shared by all callers.
+     * <p>
+     * This is the default scope, it is not thread-safe and should only be used from a single thread.
+     */
+    SHARED,
+    /**
+     * Each thread gets its own {@link EntityManager}, created on first use and reused by all the repositories
+     * called from that thread until {@link UserManager#closeThreadEntityManager()} is called.
+     */
+    THREAD,
+    /**
+     * Each repository call gets a new {@link EntityManager} that is closed once the call is done.
+     * <p>
+     * Streams created by {@link JPARepository#createStream()} are lazy and outlive the call creating them,
+     * so they use the {@link EntityManager} bound to the current thread as in {@link EntityManagerScope#THREAD}
+     */
+    OPERATION
+}
@@ -0,0 +1,241 @@
+package io.github.ossnass.jpa99;
+
+import javax.persistence.EntityListeners;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+import javax.persistence.PrePersist;
+import javax.persistence.PreRemove;
+import javax.persistence.PreUpdate;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import java.lang.ref.ReferenceQueue;
+import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Remembers the state of the entities loaded by a repository, so saving a detached entity can update only the changed attributes
+ * instead of merging it, which reads the row again.
+ * <p>
+ * Only flat entities are supported, whose attributes are all basic attributes with a single id,
+ * as merging also cascades to the associations.
+ * Entities with lifecycle callbacks or entity listeners are not supported either, as a JPQL <code>UPDATE</code> does not run them,
+ * default listeners declared in <code>orm.xml</code> are not detected. The snapshots are dropped with the entities they belong to,
+ * and are looked up by identity, so entities overriding <code>equals</code> do not share their snapshots.
+ *
+ * @param <E> the type of the entities
+ */
+class EntitySnapshots<E> {
+    private static final List<Class<? extends Annotation>> CALLBACKS = List.of(PrePersist.class, PostPersist.class,
+            PreUpdate.class, PostUpdate.class, PreRemove.class, PostRemove.class, PostLoad.class);
+
+    private final List<Attribute<?, ?>> attributes;
+    private final Attribute<?, ?> version;
+    private final boolean flat;
+    private final boolean callbacks;
+    private final Map<IdentityKey, Object[]> snapshots = new HashMap<>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    EntitySnapshots(EntityType<E> type) {
+        var basic = new ArrayList<Attribute<?, ?>>();
+        Attribute<?, ?> versionAttribute = null;
+        var onlyBasic = type.hasSingleIdAttribute();
+        for (var attribute : type.getAttributes()) {
+            if (attribute.getPersistentAttributeType() != Attribute.PersistentAttributeType.BASIC || !readable(attribute.getJavaMember())) {
+                onlyBasic = false;
+                continue;
+            }
+            var singular = (SingularAttribute<?, ?>) attribute;
+            if (singular.isVersion())
+                versionAttribute = attribute;
+            else if (!singular.isId())
+                basic.add(attribute);
+        }
+        this.attributes = Collections.unmodifiableList(basic);
+        this.version = versionAttribute;
+        this.flat = onlyBasic;
+        this.callbacks = hasCallbacks(type.getJavaType());
+    }
+
+    /**
+     * Looks for callback methods and entity listeners on an entity class and its superclasses
+     */
+    private static boolean hasCallbacks(Class<?> type) {
+        for (var current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            if (current.isAnnotationPresent(EntityListeners.class))
+                return true;
+            for (var method : current.getDeclaredMethods())
+                for (var callback : CALLBACKS)
+                    if (method.isAnnotationPresent(callback))
+                        return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the entity only has basic attributes, so it can be updated and deleted with JPQL without losing cascades
+     *
+     * @return whether the entity only has basic attributes
+     */
+    boolean isFlat() {
+        return flat;
+    }
+
+    /**
+     * Returns whether the entity has a version attribute
+     *
+     * @return whether the entity has a version attribute
+     */
+    boolean isVersioned() {
+        return version != null;
+    }
+
+    /**
+     * Returns whether the entity has lifecycle callbacks or entity listeners, which only run when the provider loads the entity
+     *
+     * @return whether the entity has lifecycle callbacks or entity listeners
+     */
+    boolean hasCallbacks() {
+        return callbacks;
+    }
+
+    /**
+     * Returns whether an entity has a version attribute whose value is null, which means it was never saved
+     *
+     * @param entity the entity
+     * @return whether the version of the entity is null
+     */
+    boolean hasNullVersion(E entity) {
+        return version != null && read(version, entity) == null;
+    }
+
+    /**
+     * Remembers the current state of an entity, nothing is done if the entity is not flat, is versioned or has callbacks
+     *
+     * @param entity the entity
+     */
+    void capture(E entity) {
+        if (!flat || version != null || callbacks || entity == null)
+            return;
+        var values = new Object[attributes.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = copy(read(attributes.get(i), entity));
+        synchronized (snapshots) {
+            expunge();
+            snapshots.put(new IdentityKey(entity, collected), values);
+        }
+    }
+
+    /**
+     * Forgets the state of an entity
+     *
+     * @param entity the entity
+     */
+    void forget(E entity) {
+        synchronized (snapshots) {
+            expunge();
+            snapshots.remove(new IdentityKey(entity, null));
+        }
+    }
+
+    /**
+     * Compares an entity with its remembered state
+     *
+     * @param entity the entity
+     * @return the changed attributes mapped by their names, null if the state of the entity is unknown
+     */
+    Map<String, Object> changes(E entity) {
+        Object[] values;
+        synchronized (snapshots) {
+            expunge();
+            values = snapshots.get(new IdentityKey(entity, null));
+        }
+        if (values == null)
+            return null;
+        var res = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < values.length; i++) {
+            var attribute = attributes.get(i);
+            var value = read(attribute, entity);
+            if (!Objects.deepEquals(value, values[i]))
+                res.put(attribute.getName(), value);
+        }
+        return res;
+    }
+
+    /**
+     * Drops the snapshots of the collected entities
+     */
+    private void expunge() {
+        for (var key = collected.poll(); key != null; key = collected.poll())
+            snapshots.remove(key);
+    }
+
+    private static boolean readable(Member member) {
+        return (member instanceof Field || member instanceof Method) && ((AccessibleObject) member).trySetAccessible();
+    }
+
+    private static Object read(Attribute<?, ?> attribute, Object entity) {
+        var member = attribute.getJavaMember();
+        try {
+            return member instanceof Field ? ((Field) member).get(entity) : ((Method) member).invoke(entity);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Could not read the attribute " + attribute.getName(), e);
+        }
+    }
+
+    /**
+     * Copies the mutable values, so changing them in place is seen as a change
+     */
+    private static Object copy(Object value) {
+        if (value instanceof byte[])
+            return Arrays.copyOf((byte[]) value, ((byte[]) value).length);
+        if (value instanceof char[])
+            return Arrays.copyOf((char[]) value, ((char[]) value).length);
+        if (value instanceof Date)
+            return ((Date) value).clone();
+        return value;
+    }
+
+    /**
+     * A weak reference to an entity, equal to the references to the same instance
+     */
+    private static class IdentityKey extends WeakReference<Object> {
+        private final int hash;
+
+        IdentityKey(Object entity, ReferenceQueue<Object> queue) {
+            super(entity, queue);
+            hash = System.identityHashCode(entity);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other)
+                return true;
+            if (!(other instanceof IdentityKey))
+                return false;
+            var entity = get();
+            return entity != null && entity == ((IdentityKey) other).get();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package io.github.ossnass.jpa99;
+
+import javax.persistence.Column;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.JoinColumn;
+import javax.persistence.OneToOne;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Table;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The table and columns an entity is stored in, built from the JPA metamodel and the mapping annotations.
+ * <p>
+ * Used by the operations writing rows directly with JDBC, such as {@link JPARepository#bulkInsert(Iterable)}, bypassing the JPA provider.
+ * <p>
+ * The id, basic attributes and the owning side of to-one associations are mapped, collections and inverse associations are ignored.
+ * Default names follow the JPA defaults, a custom naming strategy of the provider is not applied.
+ * Values are read as they are stored in the entity, except enums which are converted according to {@link Enumerated},
+ * attribute converters are not applied.
+ */
+public class EntityTableMapping {
+
+    private final String table;
+    private final List<ColumnMapping> columns;
+    private final boolean idGenerated;
+
+    private EntityTableMapping(String table, List<ColumnMapping> columns, boolean idGenerated) {
+        this.table = table;
+        this.columns = columns;
+        this.idGenerated = idGenerated;
+    }
+
+    /**
+     * Builds the mapping of an entity
+     *
+     * @param type  the metamodel type of the entity
+     * @param units reads the ids of the referenced entities, including uninitialized lazy proxies
+     * @return the mapping of the entity
+     * @throws IllegalStateException if the entity has attributes that cannot be written as plain columns, such as embedded attributes
+     */
+    static EntityTableMapping of(EntityType<?> type, PersistenceUnitUtil units) {
+        var entityClass = type.getJavaType();
+        var tableAnnotation = entityClass.getAnnotation(Table.class);
+        var table = tableAnnotation != null && !tableAnnotation.name().isEmpty() ? tableAnnotation.name() : type.getName();
+        if (tableAnnotation != null && !tableAnnotation.schema().isEmpty())
+            table = tableAnnotation.schema() + "." + table;
+        var id = idAttribute(type);
+        var generated = annotation(id.getJavaMember(), GeneratedValue.class);
+        var idGenerated = generated != null && generated.strategy() == GenerationType.IDENTITY;
+        var columns = new ArrayList<ColumnMapping>();
+        columns.add(idColumn(type));
+        // the metamodel returns the attributes as a set, sorted so every persistence unit maps the columns in the same order
+        var attributes = new ArrayList<SingularAttribute<?, ?>>(type.getSingularAttributes());
+        attributes.sort(Comparator.comparing(Attribute::getName));
+        for (var attribute : attributes) {
+            if (attribute.isId())
+                continue;
+            var member = attribute.getJavaMember();
+            switch (attribute.getPersistentAttributeType()) {
+                case BASIC:
+                    columns.add(new ColumnMapping(columnName(attribute), accessor(member), attribute.getJavaType(), enumType(attribute)));
+                    break;
+                case MANY_TO_ONE:
+                case ONE_TO_ONE:
+                    if (attribute.getType() instanceof EntityType && isOwningSide(member))
+                        columns.add(new ColumnMapping(joinColumnName(attribute), accessor(member), attribute.getJavaType(), null)
+                                .referencing(idColumn((EntityType<?>) attribute.getType()), units));
+                    break;
+                default:
+                    throw new IllegalStateException(String.format("The attribute %s of %s cannot be written as a plain column",
+                            attribute.getName(), type.getName()));
+            }
+        }
+        return new EntityTableMapping(table, Collections.unmodifiableList(columns), idGenerated);
+    }
+
+    /**
+     * Returns the table of the entity, prefixed by its schema if the entity specifies one
+     *
+     * @return the table of the entity
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * Returns the column of the id
+     *
+     * @return the column of the id
+     */
+    public String getIdColumn() {
+        return columns.get(0).name;
+    }
+
+    /**
+     * Returns whether the database generates the id, using {@link GenerationType#IDENTITY}
+     *
+     * @return whether the database generates the id
+     */
+    public boolean isIdGenerated() {
+        return idGenerated;
+    }
+
+    /**
+     * Returns all the columns of the entity, the id column first and the others in the order of their attribute names
+     *
+     * @return all the columns of the entity
+     */
+    public List<String> getColumns() {
+        var res = new ArrayList<String>(columns.size());
+        for (var column : columns)
+            res.add(column.name);
+        return res;
+    }
+
+    /**
+     * Returns the types of the values of all the columns, in the order of {@link EntityTableMapping#getColumns()}.
+     * <p>
+     * Primitive types are boxed, enums are read as {@link String} or {@link Integer} according to {@link Enumerated},
+     * and foreign keys have the type of the id of the referenced entity.
+     *
+     * @return the types of the values of the columns
+     */
+    public List<Class<?>> getColumnTypes() {
+        var res = new ArrayList<Class<?>>(columns.size());
+        for (var column : columns)
+            res.add(column.valueType());
+        return res;
+    }
+
+    /**
+     * Returns the columns written when inserting a new entity, which are all the columns except the id when the database generates it
+     *
+     * @return the columns written when inserting a new entity
+     */
+    public List<String> getInsertColumns() {
+        var all = getColumns();
+        return idGenerated ? all.subList(1, all.size()) : all;
+    }
+
+    /**
+     * Reads the values of all the columns of an entity, in the order of {@link EntityTableMapping#getColumns()}
+     *
+     * @param entity the entity
+     * @return the values of the columns
+     */
+    public Object[] getValues(Object entity) {
+        var values = new Object[columns.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = columns.get(i).read(entity);
+        return values;
+    }
+
+    /**
+     * Reads the values written when inserting an entity, in the order of {@link EntityTableMapping#getInsertColumns()}
+     *
+     * @param entity the entity
+     * @return the values of the columns
+     * @throws IllegalArgumentException if the id is assigned by the application and the entity has none
+     */
+    public Object[] getInsertValues(Object entity) {
+        var values = getValues(entity);
+        if (idGenerated) {
+            var res = new Object[values.length - 1];
+            System.arraycopy(values, 1, res, 0, res.length);
+            return res;
+        }
+        if (values[0] == null)
+            throw new IllegalArgumentException("The id of the entity must be assigned before inserting it");
+        return values;
+    }
+
+    private static String columnName(Attribute<?, ?> attribute) {
+        var column = annotation(attribute.getJavaMember(), Column.class);
+        return column != null && !column.name().isEmpty() ? column.name() : attribute.getName();
+    }
+
+    private static String joinColumnName(SingularAttribute<?, ?> attribute) {
+        var joinColumn = annotation(attribute.getJavaMember(), JoinColumn.class);
+        if (joinColumn != null && !joinColumn.name().isEmpty())
+            return joinColumn.name();
+        return attribute.getName() + "_" + idColumn((EntityType<?>) attribute.getType()).name;
+    }
+
+    private static SingularAttribute<?, ?> idAttribute(EntityType<?> type) {
+        return type.getId(type.getIdType().getJavaType());
+    }
+
+    private static ColumnMapping idColumn(EntityType<?> type) {
+        var id = idAttribute(type);
+        return new ColumnMapping(columnName(id), accessor(id.getJavaMember()), id.getJavaType(), null);
+    }
+
+    private static boolean isOwningSide(Member member) {
+        var oneToOne = annotation(member, OneToOne.class);
+        return oneToOne == null || oneToOne.mappedBy().isEmpty();
+    }
+
+    private static EnumType enumType(Attribute<?, ?> attribute) {
+        if (!attribute.getJavaType().isEnum())
+            return null;
+        var enumerated = annotation(attribute.getJavaMember(), Enumerated.class);
+        return enumerated == null ? EnumType.ORDINAL : enumerated.value();
+    }
+
+    private static <A extends Annotation> A annotation(Member member, Class<A> annotationClass) {
+        return member instanceof AccessibleObject ? ((AccessibleObject) member).getAnnotation(annotationClass) : null;
+    }
+
+    private static Member accessor(Member member) {
+        if (member instanceof AccessibleObject && !((AccessibleObject) member).trySetAccessible())
+            throw new IllegalStateException(String.format("%s is not accessible, open the package of %s to JPA99",
+                    member.getName(), member.getDeclaringClass().getName()));
+        return member;
+    }
+
+    /**
+     * A column and the way to read its value from an entity
+     */
+    private static class ColumnMapping {
+        private final String name;
+        private final Member member;
+        private final Class<?> type;
+        private final EnumType enumType;
+        private ColumnMapping target;
+        private PersistenceUnitUtil units;
+
+        ColumnMapping(String name, Member member, Class<?> type, EnumType enumType) {
+            this.name = name;
+            this.member = member;
+            this.type = type;
+            this.enumType = enumType;
+        }
+
+        /**
+         * Makes the column a foreign key, its value is the id of the referenced entity.
+         * <p>
+         * The id is read by the provider, as the fields of an uninitialized lazy proxy are never set.
+         */
+        ColumnMapping referencing(ColumnMapping target, PersistenceUnitUtil units) {
+            this.target = target;
+            this.units = units;
+            return this;
+        }
+
+        /**
+         * Returns the type of the values returned by {@link ColumnMapping#read(Object)}
+         */
+        Class<?> valueType() {
+            if (target != null)
+                return target.valueType();
+            if (enumType != null)
+                return enumType == EnumType.STRING ? String.class : Integer.class;
+            return type.isPrimitive() ? MethodType.methodType(type).wrap().returnType() : type;
+        }
+
+        Object read(Object entity) {
+            Object value;
+            try {
+                value = member instanceof Field ? ((Field) member).get(entity) : ((Method) member).invoke(entity);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Could not read the column " + name, e);
+            }
+            if (value == null)
+                return null;
+            if (target != null)
+                return units.getIdentifier(value);
+            if (enumType != null)
+                return enumType == EnumType.STRING ? ((Enum<?>) value).name() : ((Enum<?>) value).ordinal();
+            return value;
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package io.github.ossnass.jpa99;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * H2 database adapter
  * <p>
@@ -50,11 +55,26 @@ public class H2Adapter extends DBAdapter {
         return new String[]{"Mode"};
     }
 
+    /**
+     * @deprecated use {@link DBAdapter#STATEMENT_CHANGE_PASSWORD}
+     */
+    @Deprecated
     @Override
     public String getChangeUserPassword() {
         return "ALTER USER %s SET PASSWORD '%s';";
     }
 
+    /**
+     * H2 stores the names of the users in upper case, the statement changing a password is generated with the quoted name and password
+     */
+    @Override
+    protected NativeStatement createNativeStatement(String name) {
+        if (STATEMENT_CHANGE_PASSWORD.equals(name))
+            return NativeStatement.generating(name, "SELECT 'ALTER USER \"' || REPLACE(UPPER(?), '\"', '\"\"') || " +
+                    "'\" SET PASSWORD ''' || REPLACE(?, '''', '''''') || ''''");
+        return super.createNativeStatement(name);
+    }
+
     @Override
     public String getAcquireUserRoles() {
         return "SELECT 1;";
@@ -64,4 +84,50 @@ public class H2Adapter extends DBAdapter {
     public String getDriver() {
         return "org.h2.Driver";
     }
+
+    @Override
+    public String getValidationQuery() {
+        return "SELECT 1";
+    }
+
+    /**
+     * H2 has no hard limit on bind parameters, but very large <code>IN</code> lists are slower to parse and plan
+     */
+    @Override
+    public int getMaxQueryParameters() {
+        return 5000;
+    }
+
+    /**
+     * Inserts the rows using multi-row <code>INSERT</code> statements holding up to 1000 rows each
+     */
+    @Override
+    public long bulkInsert(Connection connection, String table, List<String> columns, Iterator<Object[]> rows) throws SQLException {
+        return executeMultiRow(connection, count -> insertStatement(table, columns, count), columns.size(), rows, -1);
+    }
+
+    /**
+     * Writes the rows using multi-row <code>MERGE INTO ... KEY</code> statements holding up to 1000 rows each
+     */
+    @Override
+    public long upsert(Connection connection, String table, String keyColumn, List<String> columns, Iterator<Object[]> rows) throws SQLException {
+        var sql = "MERGE INTO " + table + " (" + String.join(", ", columns) + ") KEY(" + keyColumn + ") VALUES ";
+        return executeMultiRow(connection, count -> sql + parameterGroups(columns.size(), count), columns.size(), rows, -1);
+    }
+
+    /**
+     * Restarts the identity column with <code>ALTER TABLE ... ALTER COLUMN ... RESTART WITH</code> the value after the largest id
+     */
+    @Override
+    public void restartIdentity(Connection connection, String table, String idColumn) throws SQLException {
+        long next;
+        try (var statement = connection.createStatement();
+             var resultSet = statement.executeQuery("SELECT COALESCE(MAX(" + idColumn + "), 0) + 1 FROM " + table)) {
+            resultSet.next();
+            next = resultSet.getLong(1);
+        }
+        try (var statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE " + table + " ALTER COLUMN " + idColumn + " RESTART WITH " + next);
+        }
+    }
 }
@@ -5,9 +5,39 @@ import org.jinq.jpa.JinqJPAStreamProvider;
 import org.jinq.orm.stream.JinqStream;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceException;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.BaseStream;
+import java.util.stream.Stream;
 
 /**
  * This class is used to manage entities in the database.
@@ -24,25 +54,60 @@ import java.util.Optional;
  * {@link JinqStream.Where} to create custom conditions adding them to the stream using {@link JPAJinqStream#where(JinqStream.Where)},
  * and {@link org.jinq.orm.stream.JinqStream.CollectComparable} to create custom sorters using {@link JPAJinqStream#sortedBy(JinqStream.CollectComparable)}
  * for ascending and {@link JPAJinqStream#sortedDescendingBy(JinqStream.CollectComparable)}
+ * <p>
+ * The {@link EntityManager} used by each call depends on {@link UserManager#getEntityManagerScope()},
+ * with {@link EntityManagerScope#THREAD} or {@link EntityManagerScope#OPERATION} the repository can be used from multiple threads.
  *
  * @param <EntityClass> The type of entity class
  * @param <IdClass>     The type of id class
  */
 public abstract class JPARepository<EntityClass, IdClass> {
 
+    private static final Pattern ATTRIBUTE_PATH = Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)*");
+
     /**
      * The entity manager in case you need to use it.
+     * <p>
+     * Only available when the scope is {@link EntityManagerScope#SHARED}, null otherwise,
+     * use {@link JPARepository#withEntityManager(Function)} or {@link JPARepository#inTransaction(Function)} instead.
      */
     protected final EntityManager em;
 
+    private final EntityManagerScope scope;
+
     private final JinqJPAStreamProvider provider;
 
+    private String idAttributeName;
+
+    private int batchSize;
+
+    private int fetchSize;
+
+    private volatile Cache<IdClass, EntityClass> cache;
+
+    private final RepositoryMetrics metrics;
+
+    private volatile EntityTableMapping tableMapping;
+
+    private volatile WriteBehindBuffer<EntityClass> writeBehind;
+
+    private volatile EntitySnapshots<EntityClass> snapshots;
+
+    private volatile boolean readOnly;
+
+    private final ThreadLocal<Boolean> readOnlyCall = new ThreadLocal<>();
+
+    private static final Map<String, Object> READ_ONLY_HINTS = Map.of(
+            UserManager.HIBERNATE_HINT_READ_ONLY, Boolean.TRUE,
+            UserManager.ECLIPSELINK_HINT_READ_ONLY, "True");
+
     public JPARepository() {
         if (getClass().getAnnotation(Repository.class) == null)
             throw new RuntimeException("A JPA repository must be annotated by Repository annotation");
-        em = UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
-        provider = new JinqJPAStreamProvider(UserManager.getUserManager().getEntityManagerFactory());
-
+        scope = UserManager.getUserManager().getEntityManagerScope();
+        em = scope == EntityManagerScope.SHARED ? UserManager.getUserManager().getEntityManagerFactory().createEntityManager() : null;
+        provider = UserManager.getUserManager().getStreamProvider();
+        metrics = UserManager.getUserManager().metricsFor(getClass().getAnnotation(Repository.class).value());
     }
 
     /**
@@ -59,43 +124,1252 @@ public abstract class JPARepository<EntityClass, IdClass> {
      */
     public abstract Class<IdClass> idClass();
 
+    /**
+     * Returns the common queries of this repository, translated by Jinq when logging in so their first use is as fast as the next ones.
+     * <p>
+     * Only used when the repository is annotated with <code>@Repository(warmUp = true)</code>.
+     * Each query receives a stream over the entities and returns the stream to translate, the query is never executed,
+     * so the values captured by the lambdas do not matter:
+     * <pre>{@code
+     * protected List<Function<JPAJinqStream<Person>, JinqStream<?>>> warmUpQueries() {
+     *     String name = "";
+     *     return List.of(stream -> stream.where(person -> person.getName().equals(name)));
+     * }
+     * }</pre>
+     *
+     * @return the queries to translate when logging in
+     */
+    protected List<Function<JPAJinqStream<EntityClass>, JinqStream<?>>> warmUpQueries() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Translates the queries returned by {@link JPARepository#warmUpQueries()} using a dedicated {@link EntityManager}
+     */
+    void warmUp() {
+        var queries = warmUpQueries();
+        if (queries.isEmpty())
+            return;
+        var manager = UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
+        try {
+            for (var query : queries)
+                query.apply(provider.streamAll(manager, entityClass())).getDebugQueryString();
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Returns the number of entities written before flushing and clearing the persistence context
+     *
+     * @return the batch size of this repository, or {@link UserManager#getBatchSize()} if not set
+     */
+    public int getBatchSize() {
+        return batchSize > 0 ? batchSize : UserManager.getUserManager().getBatchSize();
+    }
+
+    /**
+     * Changes the number of entities written before flushing and clearing the persistence context
+     *
+     * @param batchSize the batch size, zero to use {@link UserManager#getBatchSize()}
+     * @return the modified repository
+     * @throws IllegalArgumentException if the batch size is negative
+     */
+    public JPARepository<EntityClass, IdClass> setBatchSize(int batchSize) {
+        if (batchSize < 0)
+            throw new IllegalArgumentException("The batch size cannot be negative");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Returns the number of rows fetched per round trip by streaming reads
+     *
+     * @return the fetch size of this repository, or {@link UserManager#getFetchSize()} if not set
+     */
+    public int getFetchSize() {
+        return fetchSize > 0 ? fetchSize : UserManager.getUserManager().getFetchSize();
+    }
+
+    /**
+     * Changes the number of rows fetched per round trip by streaming reads
+     *
+     * @param fetchSize the fetch size, zero to use {@link UserManager#getFetchSize()}
+     * @return the modified repository
+     * @throws IllegalArgumentException if the fetch size is negative
+     */
+    public JPARepository<EntityClass, IdClass> setFetchSize(int fetchSize) {
+        if (fetchSize < 0)
+            throw new IllegalArgumentException("The fetch size cannot be negative");
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Enables the read-through cache of {@link JPARepository#findById(Object)}.
+     * <p>
+     * Found entities are kept in a bounded cache, evicting the least recently used ones when full,
+     * and are invalidated when saved or deleted through this repository.
+     * Integral ids are stored as primitives to avoid boxing overhead.
+     * <p>
+     * The cached entities are shared between callers and threads, so they should be treated as read-only unless saved right away.
+     * Writes made outside this repository are not seen until the entity expires.
+     * <p>
+     * The entities are invalidated once the writes are committed, and an entity read while it was written is not cached.
+     * While the cache is enabled, {@link JPARepository#findById(Object)} reads the primary database instead of the read replicas,
+     * as a lagging replica would fill the cache with a state older than the last write.
+     *
+     * @param maxSize the maximum number of cached entities
+     * @param ttl     how long an entity stays cached, null to keep entities until evicted or invalidated
+     * @return the modified repository
+     * @throws IllegalArgumentException if the maximum size is not positive
+     */
+    @SuppressWarnings("unchecked")
+    public JPARepository<EntityClass, IdClass> enableCache(int maxSize, Duration ttl) {
+        var type = idClass();
+        if (type == Long.class || type == Integer.class || type == Short.class || type == Byte.class)
+            cache = (Cache<IdClass, EntityClass>) (Cache<?, EntityClass>) new LongKeyCache<EntityClass>(maxSize, ttl);
+        else
+            cache = new LruCache<>(maxSize, ttl);
+        return this;
+    }
+
+    /**
+     * Disables the cache of {@link JPARepository#findById(Object)} and drops the cached entities
+     *
+     * @return the modified repository
+     */
+    public JPARepository<EntityClass, IdClass> disableCache() {
+        cache = null;
+        return this;
+    }
+
+    /**
+     * Enables the write-behind mode: {@link JPARepository#saveAndFlush(Object)} queues the entity and returns right away,
+     * and a background thread writes the queued entities in batches, each batch in its own transaction.
+     * <p>
+     * Saving an entity already waiting to be written replaces the waiting state, so only the last state is written,
+     * new entities without an id are never coalesced.
+     * When the queue is full, saving waits for room up to {@link WriteBehindConfig#getOfferTimeout()}.
+     * {@link JPARepository#findById(Object)} returns the waiting state of an entity until its batch is committed, other reads only see written entities.
+     * Deleting an entity drops its waiting state, so it is not written back afterwards.
+     * <p>
+     * The queued entities are written when the mode is disabled and when the user logs out.
+     * The entities are persisted or merged by the background thread, so the saved instances must not be changed until written.
+     * The writes do not go through the {@link EntityManager} of the repository, so with {@link EntityManagerScope#SHARED}
+     * entities it already holds are not refreshed.
+     *
+     * @param config  the configuration of the queue
+     * @param onError called with the batch when writing it fails, the entities of the batch are dropped
+     * @return the modified repository
+     * @throws IllegalArgumentException if the configuration or the error handler is null
+     */
+    public JPARepository<EntityClass, IdClass> enableWriteBehind(WriteBehindConfig config, BiConsumer<List<EntityClass>, RuntimeException> onError) {
+        if (config == null || onError == null)
+            throw new IllegalArgumentException("The write-behind configuration and error handler cannot be null");
+        disableWriteBehind();
+        writeBehind = new WriteBehindBuffer<>(config, this::idOf, this::writeBatch, onError);
+        return this;
+    }
+
+    /**
+     * Disables the write-behind mode, writing the queued entities before returning
+     *
+     * @return the modified repository
+     */
+    public JPARepository<EntityClass, IdClass> disableWriteBehind() {
+        var buffer = writeBehind;
+        writeBehind = null;
+        if (buffer != null)
+            buffer.close();
+        return this;
+    }
+
+    /**
+     * Writes the entities queued by the write-behind mode before returning, nothing is done if the mode is disabled
+     */
+    public void flushWriteBehind() {
+        var buffer = writeBehind;
+        if (buffer != null)
+            buffer.flushAll();
+    }
+
+    /**
+     * Returns the number of entities waiting to be written by the write-behind mode
+     *
+     * @return the number of waiting entities, 0 if the mode is disabled
+     */
+    public int getPendingWrites() {
+        var buffer = writeBehind;
+        return buffer == null ? 0 : buffer.size();
+    }
+
+    /**
+     * Drops the entities queued by the write-behind mode which are about to be deleted, so they are not written back afterwards
+     *
+     * @param matches the condition of the queued entities to drop
+     */
+    private void discardQueued(Predicate<EntityClass> matches) {
+        var buffer = writeBehind;
+        if (buffer != null)
+            buffer.discard(matches);
+    }
+
+    /**
+     * Writes a batch queued by the write-behind mode using its own {@link EntityManager}, as the scope of the repository may not allow other threads
+     *
+     * @param batch the entities to write
+     */
+    private void writeBatch(List<EntityClass> batch) {
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            inNewTransaction(manager -> {
+                for (var entity : batch)
+                    save(manager, entity);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            batch.forEach(this::evictCached);
+            invalidateQueries();
+            metrics.record(RepositoryOperation.SAVE_ALL, start, failed);
+        }
+    }
+
+    /**
+     * Called by {@link UserManager#logOut()} before closing the connection, writes the entities queued by the write-behind mode
+     */
+    void shutdown() {
+        disableWriteBehind();
+    }
+
+    /**
+     * Returns whether the reads of this repository are read-only, see {@link JPARepository#setReadOnly(boolean)}
+     *
+     * @return whether the reads of this repository are read-only
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Makes the reads of this repository read-only.
+     * <p>
+     * {@link JPARepository#findById(Object)}, {@link JPARepository#findAllById(List)} and {@link JPARepository#findPage(String, int, String)}
+     * then load the entities with the read-only hints into their own {@link EntityManager}, so the returned entities are detached
+     * and the provider keeps no dirty-checking snapshots of them.
+     * {@link JPARepository#createStream()} uses an {@link EntityManager} bound to the thread and cleared at each call,
+     * so the streamed entities never enter the persistence context used for writes.
+     * <p>
+     * Read-only reads do not see the uncommitted writes of the current transaction. Changes made to the entities are saved only by saving them.
+     *
+     * @param readOnly whether the reads of this repository are read-only
+     * @return the modified repository
+     * @see JPARepository#readOnly(Supplier)
+     */
+    public JPARepository<EntityClass, IdClass> setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    /**
+     * Runs reads of this repository as read-only, see {@link JPARepository#setReadOnly(boolean)}, for example
+     * <pre>
+     * var people = repository.readOnly(() -&gt; repository.findAllById(ids));
+     * </pre>
+     * Only the calls made by the current thread while the work runs are read-only.
+     *
+     * @param work the reads to run
+     * @param <R>  the type of the result
+     * @return the result of the work
+     */
+    public <R> R readOnly(Supplier<R> work) {
+        var previous = readOnlyCall.get();
+        readOnlyCall.set(Boolean.TRUE);
+        try {
+            return work.get();
+        } finally {
+            if (previous == null)
+                readOnlyCall.remove();
+            else
+                readOnlyCall.set(previous);
+        }
+    }
+
+    /**
+     * Checks whether the current call is read-only, because the repository is or because of {@link JPARepository#readOnly(Supplier)}
+     *
+     * @return whether the current call is read-only
+     */
+    protected boolean isReadOnlyCall() {
+        return readOnly || readOnlyCall.get() != null;
+    }
+
+    /**
+     * Returns the hints making a query read-only when the current call is
+     *
+     * @return the read-only hints, empty if the current call is not read-only
+     */
+    private Map<String, Object> readHints() {
+        return isReadOnlyCall() ? READ_ONLY_HINTS : Map.of();
+    }
+
+    /**
+     * Returns the statistics of the cache of {@link JPARepository#findById(Object)}
+     *
+     * @return the statistics of the cache, null if the cache is disabled
+     */
+    public CacheStatistics getCacheStatistics() {
+        var current = cache;
+        return current == null ? null : current.getStatistics();
+    }
+
+    private void evictCached(EntityClass entity) {
+        var current = cache;
+        if (current != null && entity != null) {
+            var id = idOf(entity);
+            if (id != null)
+                current.invalidate(id);
+        }
+    }
+
+    /**
+     * Drops the cached query results of this entity class, see {@link JPARepository#queryCached(CacheableQuery)}
+     */
+    private void invalidateQueries() {
+        UserManager.getUserManager().invalidateQueries(entityClass());
+    }
+
+    /**
+     * Returns the latency histograms and error counters of the operations of this repository, also exposed through JMX
+     *
+     * @return the measurements of this repository
+     */
+    public RepositoryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the metamodel type of the entity managed by this repository
+     *
+     * @return the metamodel type of the entity
+     */
+    protected EntityType<EntityClass> entityType() {
+        return UserManager.getUserManager().getEntityManagerFactory().getMetamodel().entity(entityClass());
+    }
+
+    /**
+     * Returns the entity name to use in JPQL queries
+     *
+     * @return the entity name to use in JPQL queries
+     */
+    protected String entityName() {
+        return entityType().getName();
+    }
+
+    /**
+     * Returns the name of the id attribute of the entity
+     *
+     * @return the name of the id attribute of the entity
+     */
+    protected String idAttributeName() {
+        if (idAttributeName == null) {
+            var type = entityType();
+            idAttributeName = type.getId(type.getIdType().getJavaType()).getName();
+        }
+        return idAttributeName;
+    }
+
+    /**
+     * Returns the table and columns the entity is stored in, used by the operations bypassing the JPA provider
+     *
+     * @return the table mapping of the entity
+     */
+    protected EntityTableMapping tableMapping() {
+        var mapping = tableMapping;
+        if (mapping == null)
+            tableMapping = mapping = EntityTableMapping.of(entityType(),
+                    UserManager.getUserManager().getEntityManagerFactory().getPersistenceUnitUtil());
+        return mapping;
+    }
+
+    /**
+     * Returns the snapshots of the loaded entities, used to update only the changed attributes
+     *
+     * @return the snapshots of the loaded entities
+     */
+    private EntitySnapshots<EntityClass> snapshots() {
+        var current = snapshots;
+        if (current == null)
+            snapshots = current = new EntitySnapshots<>(entityType());
+        return current;
+    }
+
+    /**
+     * Checks whether an entity was never saved, because it has no id or its version is null
+     *
+     * @param entity the entity
+     * @return whether the entity was never saved
+     */
+    protected boolean isNew(EntityClass entity) {
+        return idOf(entity) == null || snapshots().hasNullVersion(entity);
+    }
+
+    /**
+     * Saves an entity with as few statements as possible.
+     * <p>
+     * New entities are persisted, managed entities are left to the flush,
+     * and detached entities loaded by this repository are updated using a JPQL <code>UPDATE</code> of the changed attributes only.
+     * The other entities are merged, which reads them first.
+     *
+     * @param manager the {@link EntityManager} with an active transaction
+     * @param entity  the entity to save
+     * @return the saved entity, which may be a managed copy of the given one
+     */
+    private EntityClass save(EntityManager manager, EntityClass entity) {
+        if (isNew(entity)) {
+            manager.persist(entity);
+            return entity;
+        }
+        if (manager.contains(entity))
+            return entity;
+        var changes = snapshots().changes(entity);
+        if (changes != null) {
+            if (changes.isEmpty() || updateChanged(manager, entity, changes) == 1) {
+                snapshots().capture(entity);
+                return entity;
+            }
+            snapshots().forget(entity);
+        }
+        return manager.merge(entity);
+    }
+
+    private int updateChanged(EntityManager manager, EntityClass entity, Map<String, Object> changes) {
+        var jpql = new StringBuilder("update ").append(entityName()).append(" e set ");
+        var index = 0;
+        for (var attribute : changes.keySet()) {
+            if (index > 0)
+                jpql.append(", ");
+            jpql.append("e.").append(attribute).append(" = :p").append(index++);
+        }
+        jpql.append(" where e.").append(idAttributeName()).append(" = :id");
+        var id = idOf(entity);
+        var query = manager.createQuery(jpql.toString()).setParameter("id", id);
+        index = 0;
+        for (var value : changes.values())
+            query.setParameter("p" + index++, value);
+        var updated = query.executeUpdate();
+        detachManaged(id);
+        return updated;
+    }
+
+    /**
+     * Removes an entity, using a JPQL <code>DELETE</code> by id when the entity is detached, flat and not versioned instead of merging it first
+     *
+     * @param manager the {@link EntityManager} with an active transaction
+     * @param entity  the entity to remove
+     */
+    private void remove(EntityManager manager, EntityClass entity) {
+        if (manager.contains(entity)) {
+            manager.remove(entity);
+            return;
+        }
+        var id = idOf(entity);
+        if (id != null && canDeleteById())
+            deleteRowById(manager, id);
+        else
+            manager.remove(manager.merge(entity));
+    }
+
+    /**
+     * Checks whether a row can be deleted by id without loading the entity first, which skips cascades and lifecycle callbacks
+     *
+     * @return whether the entity only has basic attributes, no version and no lifecycle callbacks nor entity listeners
+     */
+    private boolean canDeleteById() {
+        var current = snapshots();
+        return current.isFlat() && !current.isVersioned() && !current.hasCallbacks();
+    }
+
+    private void deleteRowById(EntityManager manager, Object id) {
+        manager.createQuery(String.format("delete from %s e where e.%s = :id", entityName(), idAttributeName()))
+                .setParameter("id", id)
+                .executeUpdate();
+        detachManaged(id);
+    }
+
+    /**
+     * Drops the copy of an entity managed by the {@link EntityManager} of {@link JPARepository#getEntityManager()},
+     * after the entity was written by a bulk statement or another {@link EntityManager} which bypass its persistence context,
+     * so the entity is read again on next access
+     *
+     * @param id the id of the written entity
+     */
+    private void detachManaged(Object id) {
+        var manager = peekEntityManager();
+        if (manager == null)
+            return;
+        try {
+            manager.detach(manager.getReference(entityClass(), id));
+        } catch (EntityNotFoundException e) {
+            // the provider looked the row up and it is gone, so no copy is managed
+        }
+    }
+
+    /**
+     * Returns the id of an entity
+     *
+     * @param entity the entity
+     * @return the id of the entity, null if it does not have one yet
+     */
+    protected IdClass idOf(EntityClass entity) {
+        return idClass().cast(UserManager.getUserManager().getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity));
+    }
+
+    /**
+     * Splits a list of ids into distinct non-null chunks small enough to be bound in a single <code>IN</code> list
+     *
+     * @param ids the ids to split
+     * @return the chunks of ids
+     */
+    private List<List<IdClass>> chunkIds(List<IdClass> ids) {
+        var chunkSize = UserManager.getUserManager().getDatabaseAdapter().getMaxQueryParameters();
+        var distinct = new ArrayList<IdClass>(new LinkedHashSet<>(ids));
+        distinct.remove(null);
+        var chunks = new ArrayList<List<IdClass>>();
+        for (int i = 0; i < distinct.size(); i += chunkSize)
+            chunks.add(distinct.subList(i, Math.min(i + chunkSize, distinct.size())));
+        return chunks;
+    }
+
+    /**
+     * Acquires an {@link EntityManager} according to the scope of the repository.
+     * <p>
+     * Every acquired {@link EntityManager} must be given back using {@link JPARepository#releaseEntityManager(EntityManager)}
+     *
+     * @return the {@link EntityManager} to use for the current call
+     */
+    protected EntityManager acquireEntityManager() {
+        var task = UserManager.getUserManager().getTaskEntityManager();
+        if (task != null)
+            return task;
+        switch (scope) {
+            case THREAD:
+                return UserManager.getUserManager().getThreadEntityManager();
+            case OPERATION:
+                return UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
+            default:
+                return em;
+        }
+    }
+
+    /**
+     * Releases an {@link EntityManager} acquired by {@link JPARepository#acquireEntityManager()}.
+     * <p>
+     * Only the entity managers created for a single call are closed.
+     *
+     * @param manager the {@link EntityManager} to release
+     */
+    protected void releaseEntityManager(EntityManager manager) {
+        if (scope == EntityManagerScope.OPERATION && manager.isOpen() && manager != UserManager.getUserManager().getTaskEntityManager())
+            manager.close();
+    }
+
+    /**
+     * Runs a piece of work using an {@link EntityManager} acquired according to the scope of the repository
+     *
+     * @param work the work to do
+     * @param <R>  the type of the result
+     * @return the result of the work
+     */
+    protected <R> R withEntityManager(Function<EntityManager, R> work) {
+        var manager = acquireEntityManager();
+        try {
+            return work.apply(manager);
+        } finally {
+            releaseEntityManager(manager);
+        }
+    }
+
+    /**
+     * Runs a read-only piece of work on a read replica, see {@link DBAdapter#addReadReplica(String, int, String)}.
+     * <p>
+     * The replica is picked according to {@link UserManager#getReplicaRouting()} and the {@link EntityManager} is closed after the work,
+     * so the returned entities are detached.
+     * The work is done using {@link JPARepository#withEntityManager(Function)} when there are no replicas,
+     * or when a transaction is active on the primary database so the work sees its own writes.
+     * <p>
+     * When the call is read-only, see {@link JPARepository#isReadOnlyCall()}, the work always gets its own {@link EntityManager}
+     * which does not flush, on the primary database if there are no replicas or a transaction is active.
+     *
+     * @param work the work to do, must not modify the database
+     * @param <R>  the type of the result
+     * @return the result of the work
+     */
+    protected <R> R withReadEntityManager(Function<EntityManager, R> work) {
+        return withReadEntityManager(work, true);
+    }
+
+    /**
+     * Runs a read-only piece of work as {@link JPARepository#withReadEntityManager(Function)} does, optionally keeping it on the primary database
+     *
+     * @param work        the work to do, must not modify the database
+     * @param useReplicas whether the work may run on a read replica
+     * @param <R>         the type of the result
+     * @return the result of the work
+     */
+    private <R> R withReadEntityManager(Function<EntityManager, R> work, boolean useReplicas) {
+        var readOnlyCall = isReadOnlyCall();
+        var node = !useReplicas || inWriteTransaction() ? null : UserManager.getUserManager().chooseReplica();
+        if (node == null && !readOnlyCall)
+            return withEntityManager(work);
+        if (node != null)
+            node.inFlight.incrementAndGet();
+        var manager = node != null ? node.emf.createEntityManager() : UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
+        try {
+            if (readOnlyCall)
+                manager.setFlushMode(FlushModeType.COMMIT);
+            return work.apply(manager);
+        } finally {
+            manager.close();
+            if (node != null)
+                node.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Checks whether a transaction is active on the {@link EntityManager} of the primary database used by this thread
+     *
+     * @return whether a transaction is active on the primary database
+     */
+    private boolean inWriteTransaction() {
+        var manager = peekEntityManager();
+        return manager != null && manager.getTransaction().isActive();
+    }
+
+    /**
+     * Returns the {@link EntityManager} of {@link JPARepository#getEntityManager()} without creating it
+     *
+     * @return the current {@link EntityManager}, null if none is open
+     */
+    private EntityManager peekEntityManager() {
+        var manager = UserManager.getUserManager().getTaskEntityManager();
+        if (manager == null)
+            manager = scope == EntityManagerScope.SHARED ? em : UserManager.getUserManager().peekThreadEntityManager();
+        return manager != null && manager.isOpen() ? manager : null;
+    }
+
+    /**
+     * Similar to {@link JPARepository#withEntityManager(Function)} but the work is done inside a transaction.
+     * <p>
+     * The transaction is committed if the work finishes, and rolled back if it throws an exception.
+     *
+     * @param work the work to do
+     * @param <R>  the type of the result
+     * @return the result of the work
+     */
+    protected <R> R inTransaction(Function<EntityManager, R> work) {
+        return withEntityManager(manager -> {
+            var transaction = manager.getTransaction();
+            transaction.begin();
+            try {
+                var res = work.apply(manager);
+                transaction.commit();
+                return res;
+            } catch (RuntimeException e) {
+                if (transaction.isActive())
+                    transaction.rollback();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Similar to {@link JPARepository#inTransaction(Function)} but on a new {@link EntityManager} closed after the work,
+     * so the work does not touch the persistence context used by the other calls
+     *
+     * @param work the work to do
+     * @param <R>  the type of the result
+     * @return the result of the work
+     */
+    private <R> R inNewTransaction(Function<EntityManager, R> work) {
+        var manager = UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
+        try {
+            manager.getTransaction().begin();
+            var res = work.apply(manager);
+            manager.getTransaction().commit();
+            return res;
+        } catch (RuntimeException e) {
+            if (manager.getTransaction().isActive())
+                manager.getTransaction().rollback();
+            throw e;
+        } finally {
+            manager.close();
+        }
+    }
+
     /**
      * Saves an entity in the database, used for add/edit
+     * <p>
+     * New entities, without an id or with a null version, are persisted and the given instance is returned with its id.
+     * Detached entities loaded by this repository are updated using only their changed attributes, other entities are merged.
+     * <p>
+     * In write-behind mode the entity is queued and returned as is, see {@link JPARepository#enableWriteBehind(WriteBehindConfig, BiConsumer)}
      *
      * @param entity the entity to save
      * @return the saved entity
      */
     public EntityClass saveAndFlush(EntityClass entity) {
-        var transaction = em.getTransaction();
-        transaction.begin();
-        entity = em.merge(entity);
-        transaction.commit();
-        return entity;
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var buffer = writeBehind;
+            if (buffer != null) {
+                buffer.offer(entity);
+                evictCached(entity);
+                return entity;
+            }
+            var saved = inTransaction(manager -> save(manager, entity));
+            evictCached(saved);
+            return saved;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            invalidateQueries();
+            metrics.record(RepositoryOperation.SAVE, start, failed);
+        }
     }
 
     /**
      * Creates a {@link JPAJinqStream} to be used the user for type safe query building
+     * <p>
+     * When the database has read replicas, the stream runs on the replica bound to the current thread,
+     * unless a transaction is active on the primary database. Use {@link JPARepository#getEntityManager()} to query the primary database.
+     * <p>
+     * When the call is read-only, see {@link JPARepository#setReadOnly(boolean)}, the stream runs with the read-only hints
+     * on an {@link EntityManager} of its own, cleared at the next read-only stream of the thread.
      *
      * @return the created jpa JINQ stream
      */
     public JPAJinqStream<EntityClass> createStream() {
-        return provider.streamAll(em, entityClass());
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var readOnlyCall = isReadOnlyCall();
+            var manager = inWriteTransaction() ? null : UserManager.getUserManager().getThreadReplicaEntityManager();
+            if (manager == null && readOnlyCall)
+                manager = UserManager.getUserManager().getThreadReadOnlyEntityManager();
+            if (manager == null)
+                return provider.streamAll(getEntityManager(), entityClass());
+            // the replica may lag behind the primary, and read-only entities must not pile up, do not keep the entities of a previous stream
+            manager.clear();
+            var stream = provider.streamAll(manager, entityClass());
+            if (readOnlyCall) {
+                for (var hint : READ_ONLY_HINTS.entrySet())
+                    stream = stream.setHint(hint.getKey(), hint.getValue());
+            }
+            return stream;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            metrics.record(RepositoryOperation.CREATE_STREAM, start, failed);
+        }
+    }
+
+    /**
+     * Streams all the entities of the table using a database cursor.
+     * <p>
+     * The stream uses its own {@link EntityManager} and reads {@link JPARepository#getFetchSize()} rows per round trip,
+     * each entity is detached before being handed over, so iterating the stream does not grow the persistence context.
+     * <p>
+     * The stream must be closed when done, preferably using try-with-resources, to release the cursor and the connection.
+     *
+     * @return a stream over all the entities of the table
+     */
+    public Stream<EntityClass> streamAll() {
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var manager = UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
+            try {
+                manager.getTransaction().begin();
+                return createCursorQuery(manager).getResultStream()
+                        .peek(manager::detach)
+                        .onClose(() -> closeCursorEntityManager(manager));
+            } catch (RuntimeException e) {
+                closeCursorEntityManager(manager);
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            metrics.record(RepositoryOperation.CREATE_STREAM, start, failed);
+        }
+    }
+
+    /**
+     * Reads all the entities of the table using a database cursor, handing them over in batches.
+     * <p>
+     * Each batch holds up to {@link JPARepository#getFetchSize()} managed entities,
+     * the persistence context is cleared once the consumer is done with the batch.
+     * <p>
+     * This is a read operation, changes made to the entities are not saved.
+     *
+     * @param consumer the consumer of each batch
+     */
+    public void forEachBatch(Consumer<List<EntityClass>> consumer) {
+        var fetch = getFetchSize();
+        var manager = UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
+        try {
+            manager.getTransaction().begin();
+            try (var stream = createCursorQuery(manager).getResultStream()) {
+                var batch = new ArrayList<EntityClass>(fetch);
+                var iterator = stream.iterator();
+                while (iterator.hasNext()) {
+                    batch.add(iterator.next());
+                    if (batch.size() == fetch) {
+                        consumer.accept(batch);
+                        batch = new ArrayList<>(fetch);
+                        manager.clear();
+                    }
+                }
+                if (!batch.isEmpty())
+                    consumer.accept(batch);
+            }
+        } finally {
+            closeCursorEntityManager(manager);
+        }
+    }
+
+    private TypedQuery<EntityClass> createCursorQuery(EntityManager manager) {
+        var fetch = getFetchSize();
+        return manager.createQuery(String.format("select e from %s e", entityName()), entityClass())
+                .setHint(UserManager.HIBERNATE_HINT_FETCH_SIZE, fetch)
+                .setHint(UserManager.ECLIPSELINK_HINT_FETCH_SIZE, fetch);
+    }
+
+    private void closeCursorEntityManager(EntityManager manager) {
+        if (!manager.isOpen())
+            return;
+        if (manager.getTransaction().isActive())
+            manager.getTransaction().rollback();
+        manager.close();
+    }
+
+    /**
+     * Processes all the entities in parallel with the default configuration, see {@link JPARepository#processInChunks(Consumer, ChunkedProcessingConfig)}
+     *
+     * @param work the processing of a chunk of entities
+     * @return the running processing
+     */
+    public ChunkedProcessing processInChunks(Consumer<List<EntityClass>> work) {
+        return processInChunks(work, new ChunkedProcessingConfig());
+    }
+
+    /**
+     * Processes all the entities in parallel, splitting them into chunks over the ranges of a key, the id by default.
+     * <p>
+     * The bounds of the ranges are found lazily with keyset queries reading only the key, then each chunk
+     * is loaded in its own {@link EntityManager} and transaction, and handed over to the work.
+     * The entities of a chunk are managed, changes made to them are saved when the transaction of the chunk commits.
+     * A failed chunk is rolled back and retried, so the work should not have effects outside the database.
+     * <p>
+     * Entities inserted or whose key changes while the processing runs may be processed or not.
+     * This method returns right away, the processing runs on the executor of the configuration.
+     *
+     * @param work   the processing of a chunk of entities, called from several threads at the same time
+     * @param config the configuration of the processing
+     * @return the running processing
+     * @throws IllegalArgumentException if the key is not a basic attribute of the entity
+     */
+    public ChunkedProcessing processInChunks(Consumer<List<EntityClass>> work, ChunkedProcessingConfig config) {
+        var key = config.getKeyAttribute() == null ? idAttributeName() : config.getKeyAttribute();
+        basicAttribute(key);
+        var chunkSize = config.getChunkSize();
+        var ranges = new Object() {
+            private Object lower;
+            private boolean started;
+            private boolean done;
+
+            synchronized Object[] next() {
+                if (!started) {
+                    started = true;
+                    lower = keyAfter(key, null, 0);
+                    done = lower == null;
+                }
+                if (done)
+                    return null;
+                var upper = keyAfter(key, lower, chunkSize - 1);
+                var range = new Object[]{lower, upper};
+                done = upper == null;
+                lower = upper;
+                return range;
+            }
+        };
+        return new ChunkedProcessing().start(config, ranges::next, range -> processChunk(key, range[0], range[1], work));
+    }
+
+    /**
+     * Finds a key using a keyset query
+     *
+     * @param key    the key attribute
+     * @param after  the key to start after, null to start from the first key
+     * @param offset the number of keys to skip
+     * @return the found key, null if there are no more keys
+     */
+    private Object keyAfter(String key, Object after, int offset) {
+        var manager = UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
+        try {
+            var jpql = String.format("select e.%2$s from %1$s e where e.%2$s %3$s order by e.%2$s", entityName(), key,
+                    after == null ? "is not null" : "> :after");
+            var query = manager.createQuery(jpql).setFirstResult(offset).setMaxResults(1);
+            if (after != null)
+                query.setParameter("after", after);
+            var res = query.getResultList();
+            return res.isEmpty() ? null : res.get(0);
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Loads and processes the entities whose key is in a range, in a transaction
+     *
+     * @param key   the key attribute
+     * @param lower the first key of the range
+     * @param upper the first key after the range, null for the last range
+     * @param work  the processing of the entities
+     * @return the number of processed entities
+     */
+    private int processChunk(String key, Object lower, Object upper, Consumer<List<EntityClass>> work) {
+        var start = System.nanoTime();
+        var failed = false;
+        var manager = UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
+        List<EntityClass> entities = List.of();
+        try {
+            manager.getTransaction().begin();
+            var jpql = String.format("select e from %1$s e where e.%2$s >= :lower%3$s order by e.%2$s", entityName(), key,
+                    upper == null ? "" : String.format(" and e.%s < :upper", key));
+            var query = manager.createQuery(jpql, entityClass()).setParameter("lower", lower);
+            if (upper != null)
+                query.setParameter("upper", upper);
+            entities = query.getResultList();
+            work.accept(entities);
+            manager.getTransaction().commit();
+            return entities.size();
+        } catch (RuntimeException e) {
+            failed = true;
+            if (manager.getTransaction().isActive())
+                manager.getTransaction().rollback();
+            throw e;
+        } finally {
+            manager.close();
+            entities.forEach(this::evictCached);
+            invalidateQueries();
+            metrics.record(RepositoryOperation.PROCESS_CHUNK, start, failed);
+        }
     }
 
     /**
      * Similar to {@link JPARepository#saveAndFlush(Object)} but with multiple entities
+     * <p>
+     * Each entity is saved as in {@link JPARepository#saveAndFlush(Object)}, the list is updated with the saved entities.
+     * <p>
+     * When there are more entities than {@link JPARepository#getBatchSize()}, they are written in a single transaction
+     * using an {@link EntityManager} of their own, flushed and cleared every batch so its persistence context stays bounded.
+     * The returned entities are then detached, as are the copies of the written entities managed by {@link JPARepository#getEntityManager()},
+     * the other managed entities are left untouched.
      *
      * @param entities the list of entities to add/edit
      * @return the list of saved entities to add/edit
      */
     public List<EntityClass> saveAndFlushAll(List<EntityClass> entities) {
-        var transaction = em.getTransaction();
-        transaction.begin();
-        for (int i=0;i<entities.size();i++) {
-            entities.set(i,em.merge(entities.get(i)));
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var batch = getBatchSize();
+            if (entities.size() <= batch) {
+                var saved = inTransaction(manager -> {
+                    entities.replaceAll(entity -> save(manager, entity));
+                    return entities;
+                });
+                saved.forEach(this::evictCached);
+                return saved;
+            }
+            var written = new ArrayList<IdClass>();
+            for (var entity : entities)
+                if (!isNew(entity))
+                    written.add(idOf(entity));
+            var saved = inNewTransaction(manager -> {
+                for (int i = 0; i < entities.size(); i++) {
+                    entities.set(i, save(manager, entities.get(i)));
+                    if ((i + 1) % batch == 0) {
+                        manager.flush();
+                        manager.clear();
+                    }
+                }
+                return entities;
+            });
+            written.forEach(this::detachManaged);
+            saved.forEach(this::evictCached);
+            return saved;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            invalidateQueries();
+            metrics.record(RepositoryOperation.SAVE_ALL, start, failed);
         }
-        transaction.commit();
-        return entities;
+    }
+
+    /**
+     * Inserts new entities using the bulk loading facility of the database, see {@link DBAdapter#bulkInsert(java.sql.Connection, String, List, Iterator)}.
+     * <p>
+     * The rows are written with JDBC in a single transaction, bypassing the JPA provider,
+     * so lifecycle callbacks and cascades are not applied and the entities are not given their generated ids.
+     * The columns are found using {@link EntityTableMapping}.
+     * <p>
+     * The ids must be assigned unless the database generates them, using {@link javax.persistence.GenerationType#IDENTITY}.
+     * Ids generated by the provider from a sequence or a table are not drawn, as the provider is bypassed.
+     *
+     * @param entities the entities to insert
+     * @return the number of inserted rows
+     * @throws IllegalArgumentException if an entity has no id and its id is not generated by the database, nothing is inserted in that case
+     * @throws PersistenceException     if the rows cannot be inserted, nothing is inserted in that case
+     */
+    public long bulkInsert(Iterable<EntityClass> entities) {
+        return bulkInsert(entities.iterator());
+    }
+
+    /**
+     * Similar to {@link JPARepository#bulkInsert(Iterable)}, the stream is consumed lazily and closed once done
+     *
+     * @param entities the entities to insert
+     * @return the number of inserted rows
+     * @throws IllegalArgumentException if an entity has no id and its id is not generated by the database, nothing is inserted in that case
+     * @throws PersistenceException     if the rows cannot be inserted, nothing is inserted in that case
+     */
+    public long bulkInsert(Stream<EntityClass> entities) {
+        try (entities) {
+            return bulkInsert(entities.iterator());
+        }
+    }
+
+    private long bulkInsert(Iterator<EntityClass> entities) {
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var mapping = tableMapping();
+            var rows = new Iterator<Object[]>() {
+                @Override
+                public boolean hasNext() {
+                    return entities.hasNext();
+                }
+
+                @Override
+                public Object[] next() {
+                    return mapping.getInsertValues(entities.next());
+                }
+            };
+            return writeRows("insert", (adapter, connection) -> adapter.bulkInsert(connection, mapping.getTable(), mapping.getInsertColumns(), rows));
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            invalidateQueries();
+            metrics.record(RepositoryOperation.BULK_INSERT, start, failed);
+        }
+    }
+
+    /**
+     * Inserts entities, or updates them when their id already exists, using the upsert statement of the database,
+     * see {@link DBAdapter#upsert(java.sql.Connection, String, String, List, Iterator)}.
+     * <p>
+     * Unlike {@link JPARepository#saveAndFlush(Object)}, which merges detached entities by reading them first,
+     * each batch of entities is written by a single statement, so concurrent writers cannot race between the read and the write.
+     * The rows are written with JDBC in a single transaction, bypassing the JPA provider,
+     * so lifecycle callbacks, cascades and version checks are not applied, and managed copies of the entities are not refreshed.
+     * The columns are found using {@link EntityTableMapping}.
+     * <p>
+     * The ids must be assigned. Writing ids generated by the database does not advance its sequence on every database.
+     *
+     * @param entities the entities to write
+     * @return the number of inserted or updated rows
+     * @throws IllegalArgumentException if an entity has no id
+     * @throws PersistenceException     if the rows cannot be written or the database adapter does not support upserts, nothing is written in that case
+     */
+    public long upsertAll(Iterable<EntityClass> entities) {
+        var start = System.nanoTime();
+        var failed = false;
+        // the cached entities are invalidated once the rows are committed
+        var written = cache != null ? new ArrayList<IdClass>() : null;
+        try {
+            var mapping = tableMapping();
+            var iterator = entities.iterator();
+            var rows = new Iterator<Object[]>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Object[] next() {
+                    var entity = iterator.next();
+                    var values = mapping.getValues(entity);
+                    if (values[0] == null)
+                        throw new IllegalArgumentException("The id of the entity must be assigned before upserting it");
+                    if (written != null)
+                        written.add(idClass().cast(values[0]));
+                    return values;
+                }
+            };
+            return writeRows("upsert", (adapter, connection) -> adapter.upsert(connection, mapping.getTable(), mapping.getIdColumn(), mapping.getColumns(), rows));
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            var current = cache;
+            if (current != null && written != null)
+                written.forEach(current::invalidate);
+            invalidateQueries();
+            metrics.record(RepositoryOperation.UPSERT, start, failed);
+        }
+    }
+
+    /**
+     * Exports all the entities into a binary columnar snapshot file, to be loaded again by {@link JPARepository#importSnapshot(Path)}.
+     * <p>
+     * The entities are read using a database cursor as in {@link JPARepository#forEachBatch(Consumer)},
+     * their columns and types are found using {@link EntityTableMapping}.
+     * The file is replaced if it exists, once all the rows are written into a temporary file next to it.
+     *
+     * @param file the snapshot file
+     * @return the number of exported rows
+     * @throws IOException           if the file cannot be written
+     * @throws IllegalStateException if a column has a type the snapshot cannot store
+     */
+    public long exportSnapshot(Path file) throws IOException {
+        var start = System.nanoTime();
+        var failed = false;
+        var manager = UserManager.getUserManager().getEntityManagerFactory().createEntityManager();
+        try {
+            var mapping = tableMapping();
+            manager.getTransaction().begin();
+            try (var stream = createCursorQuery(manager).getResultStream()) {
+                var fetch = getFetchSize();
+                var entities = stream.iterator();
+                var rows = new Iterator<Object[]>() {
+                    private int read;
+
+                    @Override
+                    public boolean hasNext() {
+                        return entities.hasNext();
+                    }
+
+                    @Override
+                    public Object[] next() {
+                        // the rows are written right away, do not keep the exported entities
+                        if (++read % fetch == 0)
+                            manager.clear();
+                        return mapping.getValues(entities.next());
+                    }
+                };
+                return TableSnapshot.write(file, mapping.getTable(), mapping.getColumns(), mapping.getColumnTypes(), rows);
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            closeCursorEntityManager(manager);
+            metrics.record(RepositoryOperation.EXPORT_SNAPSHOT, start, failed);
+        }
+    }
+
+    /**
+     * Inserts the rows of a snapshot file written by {@link JPARepository#exportSnapshot(Path)}, keeping their ids.
+     * <p>
+     * The file is read one row group at a time, and the rows are streamed into
+     * {@link DBAdapter#bulkInsert(java.sql.Connection, String, List, Iterator)} in a single transaction, bypassing the JPA provider.
+     * The table should be empty, and the tables referenced by its foreign keys imported first.
+     * When the database generates the ids, its identity column is then restarted past the largest imported id,
+     * see {@link DBAdapter#restartIdentity(java.sql.Connection, String, String)}.
+     *
+     * @param file the snapshot file
+     * @return the number of imported rows
+     * @throws IOException              if the file cannot be read or is not a snapshot
+     * @throws IllegalArgumentException if the columns of the snapshot do not match the entity
+     * @throws PersistenceException     if the rows cannot be inserted, nothing is inserted in that case
+     */
+    public long importSnapshot(Path file) throws IOException {
+        var start = System.nanoTime();
+        var failed = false;
+        try (var snapshot = TableSnapshot.open(file)) {
+            var mapping = tableMapping();
+            if (!snapshot.getColumns().equals(mapping.getColumns()) || !snapshot.getTypes().equals(mapping.getColumnTypes()))
+                throw new IllegalArgumentException(String.format("The snapshot of %s with the columns %s does not match %s",
+                        snapshot.getTable(), snapshot.getColumns(), entityName()));
+            var count = writeRows("import", (adapter, connection) -> adapter.bulkInsert(connection, mapping.getTable(), mapping.getColumns(), snapshot));
+            if (mapping.isIdGenerated()) {
+                writeRows("restart the ids of", (adapter, connection) -> {
+                    adapter.restartIdentity(connection, mapping.getTable(), mapping.getIdColumn());
+                    return 0;
+                });
+            }
+            return count;
+        } catch (UncheckedIOException e) {
+            failed = true;
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            var current = cache;
+            if (current != null)
+                current.clear();
+            invalidateQueries();
+            metrics.record(RepositoryOperation.IMPORT_SNAPSHOT, start, failed);
+        }
+    }
+
+    /**
+     * Writes rows with JDBC in a single transaction, on a connection of {@link UserManager#openConnection()}
+     *
+     * @param action the action of the writer, used in the error message
+     * @param writer writes the rows using the database adapter
+     * @return the number of written rows
+     * @throws PersistenceException if the rows cannot be written, nothing is written in that case
+     */
+    private long writeRows(String action, RowWriter writer) {
+        var um = UserManager.getUserManager();
+        try (var connection = um.openConnection()) {
+            var autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                var count = writer.write(um.getDatabaseAdapter(), connection);
+                connection.commit();
+                return count;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException(String.format("Could not %s the entities of %s", action, entityName()), e);
+        }
+    }
+
+    /**
+     * Writes rows on a JDBC connection
+     */
+    private interface RowWriter {
+        long write(DBAdapter adapter, Connection connection) throws SQLException;
     }
 
     /**
@@ -105,25 +1379,333 @@ public abstract class JPARepository<EntityClass, IdClass> {
      * @return the entity in database, empty Optional if not found.
      */
     public Optional<EntityClass> findById(IdClass id) {
-        if (id == null)
-            return Optional.empty();
-        var entity = em.find(entityClass(), id);
-        return Optional.ofNullable(entity);
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            if (id == null)
+                return Optional.empty();
+            var buffer = writeBehind;
+            if (buffer != null) {
+                var waiting = buffer.pending(id);
+                if (waiting != null)
+                    return Optional.of(waiting);
+            }
+            var current = cache;
+            var generation = 0L;
+            if (current != null) {
+                var cached = current.get(id);
+                if (cached != null)
+                    return Optional.of(cached);
+                generation = current.generation();
+            }
+            var hints = readHints();
+            // a lagging replica could return a state older than the write which invalidated the cached entity
+            var entity = withReadEntityManager(manager -> manager.find(entityClass(), id, hints), current == null);
+            if (hints.isEmpty())
+                snapshots().capture(entity);
+            if (current != null && entity != null)
+                current.put(id, entity, generation);
+            return Optional.ofNullable(entity);
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            metrics.record(RepositoryOperation.FIND, start, failed);
+        }
     }
 
     /**
      * Finds a set of entities in the database using a list of ids
+     * <p>
+     * The ids are queried using <code>IN</code> lists, split into chunks according to {@link DBAdapter#getMaxQueryParameters()}
      *
      * @param ids the list of ids to find
-     * @return a list of entities found in the database
+     * @return a list of entities found in the database, in the same order as the ids
      */
     public List<EntityClass> findAllById(List<IdClass> ids) {
-        var res = new ArrayList<EntityClass>();
-        for (var id : ids) {
-            var entity = findById(id);
-            entity.ifPresent(res::add);
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var chunks = chunkIds(ids);
+            if (chunks.isEmpty())
+                return new ArrayList<>();
+            var hints = readHints();
+            var found = withReadEntityManager(manager -> {
+                var jpql = String.format("select e from %s e where e.%s in :ids", entityName(), idAttributeName());
+                var entities = new HashMap<IdClass, EntityClass>();
+                for (var chunk : chunks) {
+                    var query = manager.createQuery(jpql, entityClass()).setParameter("ids", chunk);
+                    hints.forEach(query::setHint);
+                    for (var entity : query.getResultList()) {
+                        if (hints.isEmpty())
+                            snapshots().capture(entity);
+                        entities.put(idOf(entity), entity);
+                    }
+                }
+                return entities;
+            });
+            var res = new ArrayList<EntityClass>(found.size());
+            for (var id : ids) {
+                var entity = found.get(id);
+                if (entity != null)
+                    res.add(entity);
+            }
+            return res;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            metrics.record(RepositoryOperation.FIND_ALL, start, failed);
         }
-        return res;
+    }
+
+    /**
+     * Finds a page of entities ordered by their id using keyset pagination
+     *
+     * @param size  the maximum number of entities in the page
+     * @param token the token of the previous page as returned by {@link Page#getNextToken()}, null for the first page
+     * @return the page of entities
+     * @see JPARepository#findPage(String, int, String)
+     */
+    public Page<EntityClass> findPage(int size, String token) {
+        return findPage(idAttributeName(), size, token);
+    }
+
+    /**
+     * Finds a page of entities ordered by a key attribute using keyset pagination.
+     * <p>
+     * Instead of skipping the rows of the previous pages, the page starts after the key of the last entity of the previous page,
+     * so every page costs the same as the first one when the key is indexed.
+     * The id is used to break ties between entities with equal keys.
+     * <p>
+     * The key attribute must be a non-null comparable basic attribute of the entity, of a type listed by {@link Page}.
+     *
+     * @param keyAttribute the name of the attribute to order the entities by
+     * @param size         the maximum number of entities in the page
+     * @param token        the token of the previous page as returned by {@link Page#getNextToken()}, null for the first page
+     * @return the page of entities
+     * @throws IllegalArgumentException if the size is not positive, the key is not a basic attribute of a supported type or the token is invalid
+     */
+    public Page<EntityClass> findPage(String keyAttribute, int size, String token) {
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            if (size <= 0)
+                throw new IllegalArgumentException("The page size must be positive");
+            var keyType = basicAttribute(keyAttribute).getJavaType();
+            if (!Page.isSupportedKey(keyType))
+                throw new IllegalArgumentException(String.format("%s cannot be used as a page key", keyAttribute));
+            var idName = idAttributeName();
+            var idType = entityType().getIdType().getJavaType();
+            var byId = keyAttribute.equals(idName);
+            var after = token == null ? null : Page.decodeToken(keyAttribute, keyType, idType, token);
+            if (after != null && !byId && after[1] == null)
+                throw new IllegalArgumentException("Invalid page token");
+            var jpql = new StringBuilder(String.format("select e, e.%s, e.%s from %s e", keyAttribute, idName, entityName()));
+            if (after != null)
+                jpql.append(byId ? String.format(" where e.%s > :key", idName) :
+                        String.format(" where e.%1$s > :key or (e.%1$s = :key and e.%2$s > :id)", keyAttribute, idName));
+            jpql.append(byId ? String.format(" order by e.%s", idName) : String.format(" order by e.%s, e.%s", keyAttribute, idName));
+            var hints = readHints();
+            var rows = withReadEntityManager(manager -> {
+                var query = manager.createQuery(jpql.toString(), Object[].class).setMaxResults(size + 1);
+                hints.forEach(query::setHint);
+                if (after != null) {
+                    query.setParameter("key", after[0]);
+                    if (!byId)
+                        query.setParameter("id", after[1]);
+                }
+                return query.getResultList();
+            });
+            var content = new ArrayList<EntityClass>(Math.min(rows.size(), size));
+            for (int i = 0; i < rows.size() && i < size; i++) {
+                var entity = entityClass().cast(rows.get(i)[0]);
+                if (hints.isEmpty())
+                    snapshots().capture(entity);
+                content.add(entity);
+            }
+            String next = null;
+            if (rows.size() > size) {
+                var last = rows.get(size - 1);
+                next = Page.encodeToken(keyAttribute, keyType, last[1], idType, byId ? null : last[2]);
+            }
+            return new Page<>(content, next);
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            metrics.record(RepositoryOperation.FIND_PAGE, start, failed);
+        }
+    }
+
+    /**
+     * Reads chosen attributes of all the entities into instances of a class using a JPQL constructor expression.
+     * <p>
+     * The class, for example a record, must have a public constructor taking the attributes in the same order.
+     * Only the chosen columns are read and no entity is created, so the results are not managed and do not grow the persistence context.
+     *
+     * @param type       the class of the results
+     * @param attributes the attributes of the entity to pass to the constructor, paths such as <code>address.city</code> are allowed
+     * @param <R>        the type of the results
+     * @return the list of results
+     * @throws IllegalArgumentException if no attribute is given or an attribute does not belong to the entity
+     */
+    public <R> List<R> findAllAs(Class<R> type, String... attributes) {
+        var jpql = String.format("select new %s(%s) from %s e", type.getName(), projectionList(attributes), entityName());
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            return withReadEntityManager(manager -> manager.createQuery(jpql, type).getResultList());
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            metrics.record(RepositoryOperation.PROJECT, start, failed);
+        }
+    }
+
+    /**
+     * Reads chosen attributes of all the entities as arrays of columns.
+     * <p>
+     * Only the chosen columns are read and no entity is created, so the results are not managed and do not grow the persistence context.
+     *
+     * @param attributes the attributes of the entity to read, paths such as <code>address.city</code> are allowed
+     * @return the list of rows, each row holds the values of the attributes in the same order
+     * @throws IllegalArgumentException if no attribute is given or an attribute does not belong to the entity
+     */
+    public List<Object[]> findAllColumns(String... attributes) {
+        var jpql = String.format("select %s from %s e", projectionList(attributes), entityName());
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            return withReadEntityManager(manager -> {
+                var tuples = manager.createQuery(jpql, Tuple.class).getResultList();
+                var rows = new ArrayList<Object[]>(tuples.size());
+                for (var tuple : tuples)
+                    rows.add(tuple.toArray());
+                return rows;
+            });
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            metrics.record(RepositoryOperation.PROJECT, start, failed);
+        }
+    }
+
+    /**
+     * Runs a Jinq query ending with a projection, for example
+     * <pre>
+     * repository.project(stream -&gt; stream.where(person -&gt; person.getAge() &gt; 18)
+     *         .select(person -&gt; new Pair&lt;&gt;(person.getId(), person.getName())));
+     * </pre>
+     * <p>
+     * The query runs like the other reads, see {@link JPARepository#withReadEntityManager(Function)}:
+     * on a read replica or in a read-only call it gets its own {@link EntityManager}, closed once the results are read,
+     * so entities returned by the query are detached, otherwise it runs on {@link JPARepository#getEntityManager()}
+     * and they are managed. Select attributes or tuples to avoid reading whole entities.
+     *
+     * @param query the query built on the stream of the entities
+     * @param <R>   the type of the results
+     * @return the list of results
+     */
+    public <R> List<R> project(Function<JPAJinqStream<EntityClass>, JinqStream<R>> query) {
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            return withReadEntityManager(manager -> query.apply(provider.streamAll(manager, entityClass())).toList());
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            metrics.record(RepositoryOperation.PROJECT, start, failed);
+        }
+    }
+
+    /**
+     * Runs a Jinq query whose result is cached when the query cache is enabled, see {@link UserManager#enableQueryCache(int, Duration)}, for example
+     * <pre>
+     * repository.queryCached(stream -&gt; stream.where(person -&gt; person.getName().equals(name)).count());
+     * </pre>
+     * The result is cached for the code of the query and the values it captures, and dropped when an entity of this class
+     * is saved, deleted or inserted through a repository. A query reading other entities, using joins for example,
+     * is not invalidated by the writes to those entities, the time to live of the cache bounds how stale its result can get.
+     * <p>
+     * The query runs on its own {@link EntityManager} with the read-only hints, so entities in the result are detached.
+     * Cached results are shared between callers and threads, so they must not be modified.
+     *
+     * @param query the query, ending with a terminal operation such as {@link JPAJinqStream#toList()}
+     * @param <R>   the type of the result
+     * @return the result of the query
+     * @throws IllegalArgumentException if the query returns a stream, which cannot be cached
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R queryCached(CacheableQuery<EntityClass, R> query) {
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var cache = UserManager.getUserManager().getQueryCache();
+            QueryCache.Key key = null;
+            long generation = 0;
+            if (cache != null) {
+                key = QueryCache.keyOf(entityClass(), query);
+                var cached = cache.get(key);
+                if (cached != null)
+                    return (R) cached;
+                generation = cache.generation();
+            }
+            var result = readOnly(() -> withReadEntityManager(manager -> query.query(provider.streamAll(manager, entityClass()))));
+            if (result instanceof BaseStream)
+                throw new IllegalArgumentException("The query must end with a terminal operation such as toList or count");
+            if (cache != null)
+                cache.put(key, result, generation);
+            return result;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            metrics.record(RepositoryOperation.CACHED_QUERY, start, failed);
+        }
+    }
+
+    /**
+     * Finds a basic attribute of the entity, checking a name before it is formatted into JPQL
+     *
+     * @param name the name of the attribute
+     * @return the attribute
+     * @throws IllegalArgumentException if the name is not the name of a basic attribute of the entity
+     */
+    private SingularAttribute<? super EntityClass, ?> basicAttribute(String name) {
+        if (name == null || !ATTRIBUTE_PATH.matcher(name).matches())
+            throw new IllegalArgumentException("Invalid attribute " + name);
+        for (var attribute : entityType().getSingularAttributes())
+            if (attribute.getName().equals(name) && attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.BASIC)
+                return attribute;
+        throw new IllegalArgumentException(String.format("%s is not a basic attribute of %s", name, entityName()));
+    }
+
+    /**
+     * Checks the projected attributes and joins them into a JPQL select list
+     *
+     * @param attributes the attributes of the entity
+     * @return the select list
+     */
+    private String projectionList(String... attributes) {
+        if (attributes == null || attributes.length == 0)
+            throw new IllegalArgumentException("At least one attribute must be projected");
+        var type = entityType();
+        var res = new StringBuilder();
+        for (var attribute : attributes) {
+            if (attribute == null || !ATTRIBUTE_PATH.matcher(attribute).matches())
+                throw new IllegalArgumentException("Invalid attribute " + attribute);
+            var name = attribute.split("\\.", 2)[0];
+            if (type.getAttributes().stream().noneMatch(a -> a.getName().equals(name)))
+                throw new IllegalArgumentException(String.format("%s is not an attribute of %s", name, entityName()));
+            if (res.length() > 0)
+                res.append(", ");
+            res.append("e.").append(attribute);
+        }
+        return res.toString();
     }
 
     /**
@@ -132,10 +1714,23 @@ public abstract class JPARepository<EntityClass, IdClass> {
      * @param entity the entity to delete
      */
     public void delete(EntityClass entity) {
-        var transaction = em.getTransaction();
-        transaction.begin();
-        em.remove(em.merge(entity));
-        transaction.commit();
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var id = idOf(entity);
+            discardQueued(queued -> queued == entity || id != null && id.equals(idOf(queued)));
+            inTransaction(manager -> {
+                remove(manager, entity);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            evictCached(entity);
+            invalidateQueries();
+            metrics.record(RepositoryOperation.DELETE, start, failed);
+        }
     }
 
     /**
@@ -144,32 +1739,109 @@ public abstract class JPARepository<EntityClass, IdClass> {
      * @param entities the list of entities to delete
      */
     public void deleteAll(List<EntityClass> entities) {
-        var transaction = em.getTransaction();
-        transaction.begin();
-        for (var entity : entities) {
-            em.remove(em.merge(entity));
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var ids = new HashSet<IdClass>();
+            var instances = Collections.newSetFromMap(new IdentityHashMap<EntityClass, Boolean>());
+            for (var entity : entities) {
+                var id = idOf(entity);
+                if (id != null)
+                    ids.add(id);
+                instances.add(entity);
+            }
+            discardQueued(queued -> instances.contains(queued) || ids.contains(idOf(queued)));
+            inTransaction(manager -> {
+                for (var entity : entities)
+                    remove(manager, entity);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            entities.forEach(this::evictCached);
+            invalidateQueries();
+            metrics.record(RepositoryOperation.DELETE_ALL, start, failed);
         }
-        transaction.commit();
     }
 
     /**
      * Deletes an entity from the database using its id
+     * <p>
+     * Entities with only basic attributes, no version and no lifecycle callbacks nor entity listeners are deleted without being loaded,
+     * the others are loaded first so their cascades and callbacks are applied.
      *
      * @param id the id of the entity to delete
      */
     public void deleteById(IdClass id) {
-        var entity = findById(id);
-        entity.ifPresent(this::delete);
+        if (id != null)
+            discardQueued(queued -> id.equals(idOf(queued)));
+        if (id == null || !canDeleteById()) {
+            var entity = findById(id);
+            entity.ifPresent(this::delete);
+            return;
+        }
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            inTransaction(manager -> {
+                deleteRowById(manager, id);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            var current = cache;
+            if (current != null)
+                current.invalidate(id);
+            invalidateQueries();
+            metrics.record(RepositoryOperation.DELETE, start, failed);
+        }
     }
 
     /**
      * Deletes a list of entities from the database using its list of ids
+     * <p>
+     * The entities are deleted using bulk <code>DELETE</code> statements without being loaded,
+     * so cascading and lifecycle callbacks are not applied.
+     * The ids are split into chunks according to {@link DBAdapter#getMaxQueryParameters()},
+     * and the managed copies of the deleted entities are detached, the other managed entities are left untouched.
      *
      * @param ids the list of ids to delete
      */
     public void deleteAllById(List<IdClass> ids) {
-        var entities = findAllById(ids);
-        deleteAll(entities);
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var chunks = chunkIds(ids);
+            if (chunks.isEmpty())
+                return;
+            var deleted = new HashSet<IdClass>();
+            chunks.forEach(deleted::addAll);
+            discardQueued(queued -> deleted.contains(idOf(queued)));
+            try {
+                inTransaction(manager -> {
+                    var jpql = String.format("delete from %s e where e.%s in :ids", entityName(), idAttributeName());
+                    for (var chunk : chunks) {
+                        manager.createQuery(jpql).setParameter("ids", chunk).executeUpdate();
+                        chunk.forEach(this::detachManaged);
+                    }
+                    return null;
+                });
+            } finally {
+                var current = cache;
+                if (current != null)
+                    deleted.forEach(current::invalidate);
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            invalidateQueries();
+            metrics.record(RepositoryOperation.DELETE_ALL, start, failed);
+        }
     }
 
     /**
@@ -179,8 +1851,10 @@ public abstract class JPARepository<EntityClass, IdClass> {
      * @return the refreshed entity
      */
     public EntityClass refresh(EntityClass entity) {
-        em.refresh(entity);
-        return entity;
+        return withEntityManager(manager -> {
+            manager.refresh(entity);
+            return entity;
+        });
     }
 
     /**
@@ -189,18 +1863,143 @@ public abstract class JPARepository<EntityClass, IdClass> {
      * Used in testing and might be removed in the final version
      */
     public void deleteEverything() {
-        var transaction = em.getTransaction();
-        transaction.begin();
-        var query = em.createQuery("delete from " + entityClass().getName());
-        query.executeUpdate();
-        transaction.commit();
+        var start = System.nanoTime();
+        var failed = false;
+        try {
+            var buffer = writeBehind;
+            if (buffer != null)
+                buffer.clear();
+            inTransaction(manager -> manager.createQuery("delete from " + entityClass().getName()).executeUpdate());
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            var current = cache;
+            if (current != null)
+                current.clear();
+            invalidateQueries();
+            metrics.record(RepositoryOperation.DELETE_ALL, start, failed);
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link JPARepository#saveAndFlush(Object)}, see {@link UserManager#supplyAsync(Supplier)}
+     *
+     * @param entity the entity to save
+     * @return a future completed with the saved entity
+     */
+    public CompletableFuture<EntityClass> saveAndFlushAsync(EntityClass entity) {
+        return UserManager.getUserManager().supplyAsync(() -> saveAndFlush(entity));
+    }
+
+    /**
+     * Asynchronous version of {@link JPARepository#saveAndFlushAll(List)}, see {@link UserManager#supplyAsync(Supplier)}
+     *
+     * @param entities the list of entities to add/edit
+     * @return a future completed with the list of saved entities
+     */
+    public CompletableFuture<List<EntityClass>> saveAndFlushAllAsync(List<EntityClass> entities) {
+        return UserManager.getUserManager().supplyAsync(() -> saveAndFlushAll(entities));
+    }
+
+    /**
+     * Asynchronous version of {@link JPARepository#findById(Object)}, see {@link UserManager#supplyAsync(Supplier)}
+     *
+     * @param id the id of the entity
+     * @return a future completed with the entity, empty Optional if not found
+     */
+    public CompletableFuture<Optional<EntityClass>> findByIdAsync(IdClass id) {
+        return UserManager.getUserManager().supplyAsync(() -> findById(id));
+    }
+
+    /**
+     * Asynchronous version of {@link JPARepository#findAllById(List)}, see {@link UserManager#supplyAsync(Supplier)}
+     *
+     * @param ids the list of ids to find
+     * @return a future completed with the entities found, in the same order as the ids
+     */
+    public CompletableFuture<List<EntityClass>> findAllByIdAsync(List<IdClass> ids) {
+        return UserManager.getUserManager().supplyAsync(() -> findAllById(ids));
+    }
+
+    /**
+     * Asynchronous version of {@link JPARepository#delete(Object)}, see {@link UserManager#supplyAsync(Supplier)}
+     *
+     * @param entity the entity to delete
+     * @return a future completed once the entity is deleted
+     */
+    public CompletableFuture<Void> deleteAsync(EntityClass entity) {
+        return UserManager.getUserManager().supplyAsync(() -> {
+            delete(entity);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link JPARepository#deleteAll(List)}, see {@link UserManager#supplyAsync(Supplier)}
+     *
+     * @param entities the list of entities to delete
+     * @return a future completed once the entities are deleted
+     */
+    public CompletableFuture<Void> deleteAllAsync(List<EntityClass> entities) {
+        return UserManager.getUserManager().supplyAsync(() -> {
+            deleteAll(entities);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link JPARepository#deleteById(Object)}, see {@link UserManager#supplyAsync(Supplier)}
+     *
+     * @param id the id of the entity to delete
+     * @return a future completed once the entity is deleted
+     */
+    public CompletableFuture<Void> deleteByIdAsync(IdClass id) {
+        return UserManager.getUserManager().supplyAsync(() -> {
+            deleteById(id);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link JPARepository#deleteAllById(List)}, see {@link UserManager#supplyAsync(Supplier)}
+     *
+     * @param ids the list of ids to delete
+     * @return a future completed once the entities are deleted
+     */
+    public CompletableFuture<Void> deleteAllByIdAsync(List<IdClass> ids) {
+        return UserManager.getUserManager().supplyAsync(() -> {
+            deleteAllById(ids);
+            return null;
+        });
+    }
+
+    /**
+     * Runs a JINQ query asynchronously, see {@link UserManager#supplyAsync(Supplier)}
+     * <p>
+     * The query receives a stream created by {@link JPARepository#createStream()} and must consume it,
+     * for example using {@link JinqStream#toList()} or {@link JinqStream#count()}, as the stream cannot be used once the task is done.
+     *
+     * @param query the query to run
+     * @param <R>   the type of the result
+     * @return a future completed with the result of the query
+     */
+    public <R> CompletableFuture<R> queryAsync(Function<JPAJinqStream<EntityClass>, R> query) {
+        return UserManager.getUserManager().supplyAsync(() -> query.apply(createStream()));
     }
 
     /**
      * Returns the current {@link EntityManager} in case you want to do something special
+     * <p>
+     * With {@link EntityManagerScope#THREAD} and {@link EntityManagerScope#OPERATION} this is the {@link EntityManager}
+     * bound to the current thread, inside an asynchronous call it is the {@link EntityManager} of the task.
+     *
      * @return the current {@link EntityManager}
      */
-    public EntityManager getEntityManager(){
-        return em;
+    public EntityManager getEntityManager() {
+        var task = UserManager.getUserManager().getTaskEntityManager();
+        if (task != null)
+            return task;
+        return scope == EntityManagerScope.SHARED ? em : UserManager.getUserManager().getThreadEntityManager();
     }
 }
@@ -0,0 +1,29 @@
+package io.github.ossnass.jpa99;
+
+/**
+ * The phases of {@link UserManager#logIn(String, String)} measured by {@link UserManager#getLogInPhaseNanos(LogInPhase)}.
+ * <p>
+ * With {@link UserManager#logInAsync(String, String)}, the repository scan runs at the same time as the phases before it.
+ */
+public enum LogInPhase {
+    /**
+     * Creating and priming the connection pools, see {@link UserManager#setConnectionPoolConfig(ConnectionPoolConfig)}
+     */
+    CONNECTION_POOL,
+    /**
+     * Creating the {@link javax.persistence.EntityManagerFactory} of the primary database and of the read replicas
+     */
+    ENTITY_MANAGER_FACTORY,
+    /**
+     * Acquiring the roles of the user
+     */
+    ROLES,
+    /**
+     * Finding the classes annotated by {@link Repository}
+     */
+    REPOSITORY_SCAN,
+    /**
+     * Warming up the repositories, see {@link Repository#warmUp()}
+     */
+    WARM_UP
+}
@@ -0,0 +1,195 @@
+package io.github.ossnass.jpa99;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * A {@link Cache} specialized for integral keys such as {@link Integer} and {@link Long} ids.
+ * <p>
+ * The keys are stored as primitive longs in an open addressing table, so caching does not allocate boxed keys nor map entries.
+ * When full, the value to evict is picked using the CLOCK algorithm, an approximation of least recently used eviction
+ * that only costs a flag per lookup.
+ *
+ * @param <V> the type of the values
+ */
+class LongKeyCache<V> implements Cache<Number, V> {
+
+    private final int maxSize;
+    private final int mask;
+    private final long ttlNanos;
+    private final long[] keys;
+    private final Object[] values;
+    private final long[] expires;
+    private final boolean[] referenced;
+    private int size;
+    private int hand;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long generation;
+
+    /**
+     * Creates a new cache
+     *
+     * @param maxSize the maximum number of cached values
+     * @param ttl     how long a value stays cached, null or zero to keep values until evicted
+     * @throws IllegalArgumentException if the maximum size is not positive or too large
+     */
+    LongKeyCache(int maxSize, Duration ttl) {
+        if (maxSize <= 0 || maxSize > 1 << 28)
+            throw new IllegalArgumentException("The maximum size of the cache must be positive and at most 2^28");
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl == null ? 0 : ttl.toNanos();
+        // keep the table at most half full so probe sequences stay short
+        var capacity = Integer.highestOneBit(maxSize) << 2;
+        this.mask = capacity - 1;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.expires = new long[capacity];
+        this.referenced = new boolean[capacity];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized V get(Number key) {
+        var index = indexOf(key.longValue());
+        if (index < 0) {
+            misses++;
+            return null;
+        }
+        if (expires[index] != 0 && System.nanoTime() - expires[index] > 0) {
+            removeAt(index);
+            expirations++;
+            misses++;
+            return null;
+        }
+        referenced[index] = true;
+        hits++;
+        return (V) values[index];
+    }
+
+    @Override
+    public synchronized void put(Number key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("Cannot cache a null value");
+        var k = key.longValue();
+        var index = indexOf(k);
+        if (index < 0 && size >= maxSize) {
+            evictOne();
+            index = indexOf(k);
+        }
+        if (index < 0) {
+            index = -1 - index;
+            keys[index] = k;
+            size++;
+        }
+        values[index] = value;
+        expires[index] = ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos;
+        referenced[index] = true;
+    }
+
+    @Override
+    public synchronized long generation() {
+        return generation;
+    }
+
+    @Override
+    public synchronized void put(Number key, V value, long generation) {
+        if (generation == this.generation)
+            put(key, value);
+    }
+
+    @Override
+    public synchronized void invalidate(Number key) {
+        generation++;
+        var index = indexOf(key.longValue());
+        if (index >= 0)
+            removeAt(index);
+    }
+
+    @Override
+    public synchronized void clear() {
+        generation++;
+        Arrays.fill(values, null);
+        Arrays.fill(referenced, false);
+        size = 0;
+    }
+
+    @Override
+    public synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(hits, misses, evictions, expirations, size);
+    }
+
+    /**
+     * Spreads the bits of a key, the slot of a key is its hash masked by the size of the table
+     */
+    static int hash(long key) {
+        var h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Finds the slot of a key
+     *
+     * @param key the key
+     * @return the slot of the key, or <code>-1 - slot</code> where slot is the free slot the key would be inserted in
+     */
+    private int indexOf(long key) {
+        var index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key)
+                return index;
+            index = (index + 1) & mask;
+        }
+        return -1 - index;
+    }
+
+    private void evictOne() {
+        var now = System.nanoTime();
+        while (true) {
+            hand = (hand + 1) & mask;
+            if (values[hand] == null)
+                continue;
+            if (expires[hand] != 0 && now - expires[hand] > 0) {
+                removeAt(hand);
+                expirations++;
+                return;
+            }
+            if (referenced[hand]) {
+                referenced[hand] = false;
+                continue;
+            }
+            removeAt(hand);
+            evictions++;
+            return;
+        }
+    }
+
+    /**
+     * Removes the value in a slot, shifting back the following values of the probe sequence so lookups still find them
+     *
+     * @param index the slot to empty
+     */
+    private void removeAt(int index) {
+        var gap = index;
+        var next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            if (values[next] == null)
+                break;
+            var home = hash(keys[next]) & mask;
+            var stays = gap <= next ? home > gap && home <= next : home > gap || home <= next;
+            if (!stays) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                expires[gap] = expires[next];
+                referenced[gap] = referenced[next];
+                gap = next;
+            }
+        }
+        values[gap] = null;
+        referenced[gap] = false;
+        size--;
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.ossnass.jpa99;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A {@link Cache} evicting the least recently used values, keys are compared using {@link Object#equals(Object)}
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+class LruCache<K, V> implements Cache<K, V> {
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long generation;
+
+    /**
+     * Creates a new cache
+     *
+     * @param maxSize the maximum number of cached values
+     * @param ttl     how long a value stays cached, null or zero to keep values until evicted
+     * @throws IllegalArgumentException if the maximum size is not positive
+     */
+    LruCache(int maxSize, Duration ttl) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("The maximum size of the cache must be positive");
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl == null ? 0 : ttl.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, LruCache.Entry<V>> eldest) {
+                if (size() <= LruCache.this.maxSize)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        var entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.isExpired(System.nanoTime())) {
+            entries.remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    @Override
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos));
+    }
+
+    @Override
+    public synchronized long generation() {
+        return generation;
+    }
+
+    @Override
+    public synchronized void put(K key, V value, long generation) {
+        if (generation == this.generation)
+            put(key, value);
+    }
+
+    @Override
+    public synchronized void invalidate(K key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    /**
+     * Removes the values whose keys match a condition
+     *
+     * @param condition the condition on the keys
+     */
+    public synchronized void invalidateIf(Predicate<K> condition) {
+        generation++;
+        entries.keySet().removeIf(condition);
+    }
+
+    @Override
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    @Override
+    public synchronized CacheStatistics getStatistics() {
+        return new CacheStatistics(hits, misses, evictions, expirations, entries.size());
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt != 0 && now - expiresAt > 0;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package io.github.ossnass.jpa99;
+
+/**
+ * Receives the measurements taken by JPA99, to bridge them to another metrics library.
+ * <p>
+ * The measurements are always kept by {@link RepositoryMetrics} and exposed through JMX,
+ * a recorder set using {@link UserManager#setMetricsRecorder(MetricsRecorder)} receives them as well.
+ * <p>
+ * The methods are called on the thread doing the work, so they must be fast and thread safe.
+ */
+public interface MetricsRecorder {
+
+    /**
+     * Called after each operation of a repository
+     *
+     * @param repository the id of the repository, see {@link Repository#value()}
+     * @param operation  the operation
+     * @param nanos      how long the operation took in nanoseconds
+     * @param failed     whether the operation threw an exception
+     */
+    void recordOperation(String repository, RepositoryOperation operation, long nanos, boolean failed);
+
+    /**
+     * Called after each phase of {@link UserManager#logIn(String, String)}
+     *
+     * @param phase the phase
+     * @param nanos how long the phase took in nanoseconds
+     */
+    default void recordLogInPhase(LogInPhase phase, long nanos) {
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.ossnass.jpa99;
+
+/**
+ * A named native SQL statement declared by a {@link DBAdapter}, see {@link DBAdapter#getNativeStatement(String)}.
+ * <p>
+ * The values are bound to the <code>?</code> parameters of the statement, never formatted into its SQL,
+ * so {@link UserManager} prepares each statement once per pooled connection and reuses it.
+ * <p>
+ * Statements such as <code>ALTER USER</code> cannot take bind parameters, they are declared as generating statements:
+ * a query with bind parameters returning the statement to execute, the database quoting the values while generating it.
+ */
+public class NativeStatement {
+
+    private final String name;
+    private final String sql;
+    private final boolean generating;
+
+    /**
+     * Creates a statement with bind parameters
+     *
+     * @param name the name of the statement
+     * @param sql  the SQL of the statement
+     * @throws IllegalArgumentException if the name or the SQL is null or empty
+     */
+    public NativeStatement(String name, String sql) {
+        this(name, sql, false);
+    }
+
+    private NativeStatement(String name, String sql, boolean generating) {
+        if (name == null || name.isBlank())
+            throw new IllegalArgumentException("The name of the statement cannot be empty");
+        if (sql == null || sql.isBlank())
+            throw new IllegalArgumentException("The SQL of the statement cannot be empty");
+        this.name = name;
+        this.sql = sql;
+        this.generating = generating;
+    }
+
+    /**
+     * Creates a generating statement, a query returning a single row and column holding the statement to execute
+     *
+     * @param name the name of the statement
+     * @param sql  the query generating the statement to execute
+     * @return the generating statement
+     * @throws IllegalArgumentException if the name or the SQL is null or empty
+     */
+    public static NativeStatement generating(String name, String sql) {
+        return new NativeStatement(name, sql, true);
+    }
+
+    /**
+     * Returns the name of the statement
+     *
+     * @return the name of the statement
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the SQL of the statement
+     *
+     * @return the SQL of the statement
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Returns whether the statement is a query generating the statement to execute
+     *
+     * @return whether the statement is a query generating the statement to execute
+     */
+    public boolean isGenerating() {
+        return generating;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NativeStatement{name=%s, sql=%s, generating=%s}", name, sql, generating);
+    }
+}
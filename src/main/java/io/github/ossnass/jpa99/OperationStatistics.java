@@ -0,0 +1,93 @@
+package io.github.ossnass.jpa99;
+
+/**
+ * A snapshot of the measurements of a {@link RepositoryOperation}, see {@link RepositoryMetrics#getStatistics(RepositoryOperation)}
+ */
+public class OperationStatistics {
+    private final long count;
+    private final long errors;
+    private final double meanNanos;
+    private final long p50Nanos;
+    private final long p90Nanos;
+    private final long p99Nanos;
+    private final long maxNanos;
+
+    OperationStatistics(LatencyHistogram histogram, long errors) {
+        this.count = histogram.getCount();
+        this.errors = errors;
+        this.meanNanos = histogram.getMeanNanos();
+        this.p50Nanos = histogram.getPercentileNanos(50);
+        this.p90Nanos = histogram.getPercentileNanos(90);
+        this.p99Nanos = histogram.getPercentileNanos(99);
+        this.maxNanos = histogram.getMaxNanos();
+    }
+
+    /**
+     * Returns the number of calls
+     *
+     * @return the number of calls
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of calls that threw an exception
+     *
+     * @return the number of calls that threw an exception
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the average duration of a call
+     *
+     * @return the average duration of a call in nanoseconds
+     */
+    public double getMeanNanos() {
+        return meanNanos;
+    }
+
+    /**
+     * Returns the median duration of a call
+     *
+     * @return the median duration of a call in nanoseconds
+     */
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    /**
+     * Returns the 90th percentile of the duration of a call
+     *
+     * @return the 90th percentile of the duration of a call in nanoseconds
+     */
+    public long getP90Nanos() {
+        return p90Nanos;
+    }
+
+    /**
+     * Returns the 99th percentile of the duration of a call
+     *
+     * @return the 99th percentile of the duration of a call in nanoseconds
+     */
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    /**
+     * Returns the longest duration of a call
+     *
+     * @return the longest duration of a call in nanoseconds
+     */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("OperationStatistics[count=%d, errors=%d, mean=%.0fns, p50=%dns, p90=%dns, p99=%dns, max=%dns]",
+                count, errors, meanNanos, p50Nanos, p90Nanos, p99Nanos, maxNanos);
+    }
+}
@@ -0,0 +1,218 @@
+package io.github.ossnass.jpa99;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * A page of entities returned by keyset pagination, see {@link JPARepository#findPage(int, String)}
+ * <p>
+ * The page holds an opaque continuation token used to request the next page,
+ * the token encodes the key of the last entity in the page so the next page is found using the index instead of an offset.
+ * Tokens come from clients, so they only hold typed values parsed back into the type of the key, never serialized objects.
+ *
+ * @param <EntityClass> The type of entity class
+ */
+public class Page<EntityClass> {
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_LONG = 1;
+    private static final byte TAG_TEXT = 2;
+
+    /**
+     * The key types written as a long
+     */
+    private static final Set<Class<?>> INTEGRAL_KEYS = Set.of(Long.class, Integer.class, Short.class, Byte.class);
+
+    /**
+     * The key types written as a string, mapped by the parsers reading them back, enums are written by name
+     */
+    private static final Map<Class<?>, Function<String, Object>> TEXT_KEYS = Map.ofEntries(
+            Map.entry(String.class, text -> text),
+            Map.entry(Character.class, text -> {
+                if (text.length() != 1)
+                    throw new IllegalArgumentException("The key is not a character");
+                return text.charAt(0);
+            }),
+            Map.entry(Boolean.class, Boolean::valueOf),
+            Map.entry(Double.class, Double::valueOf),
+            Map.entry(Float.class, Float::valueOf),
+            Map.entry(BigDecimal.class, BigDecimal::new),
+            Map.entry(BigInteger.class, BigInteger::new),
+            Map.entry(UUID.class, UUID::fromString),
+            Map.entry(LocalDate.class, LocalDate::parse),
+            Map.entry(LocalTime.class, LocalTime::parse),
+            Map.entry(LocalDateTime.class, LocalDateTime::parse),
+            Map.entry(OffsetDateTime.class, OffsetDateTime::parse),
+            Map.entry(OffsetTime.class, OffsetTime::parse),
+            Map.entry(ZonedDateTime.class, ZonedDateTime::parse),
+            Map.entry(Instant.class, Instant::parse),
+            Map.entry(java.sql.Date.class, java.sql.Date::valueOf),
+            Map.entry(Time.class, Time::valueOf),
+            Map.entry(Timestamp.class, Timestamp::valueOf),
+            Map.entry(Date.class, Timestamp::valueOf));
+
+    private final List<EntityClass> content;
+    private final String nextToken;
+
+    Page(List<EntityClass> content, String nextToken) {
+        this.content = Collections.unmodifiableList(content);
+        this.nextToken = nextToken;
+    }
+
+    /**
+     * Returns the entities in the page
+     *
+     * @return the entities in the page
+     */
+    public List<EntityClass> getContent() {
+        return content;
+    }
+
+    /**
+     * Returns the token used to request the next page
+     *
+     * @return the token used to request the next page, null if this is the last page
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    /**
+     * Returns whether there is a page after this one
+     *
+     * @return whether there is a page after this one
+     */
+    public boolean hasNext() {
+        return nextToken != null;
+    }
+
+    /**
+     * Checks whether the values of a type can be encoded into a token
+     *
+     * @param type the type of the key attribute
+     * @return whether the values of the type can be encoded into a token
+     */
+    static boolean isSupportedKey(Class<?> type) {
+        var boxed = box(type);
+        return INTEGRAL_KEYS.contains(boxed) || TEXT_KEYS.containsKey(boxed) || boxed.isEnum();
+    }
+
+    /**
+     * Encodes the position after the last entity of a page into a token.
+     * <p>
+     * The token holds the name of the key attribute, then the key and the id each written as a tag followed by a long or a string,
+     * so decoding it only parses values of the expected types.
+     *
+     * @param attribute the name of the key attribute
+     * @param keyType   the type of the key attribute
+     * @param key       the key of the last entity
+     * @param idType    the type of the id
+     * @param id        the id of the last entity, null if the key is the id
+     * @return the encoded token
+     * @throws IllegalArgumentException if a value cannot be encoded
+     */
+    static String encodeToken(String attribute, Class<?> keyType, Object key, Class<?> idType, Object id) {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeUTF(attribute);
+            writeValue(out, box(keyType), key);
+            writeValue(out, box(idType), id);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("The key of the page cannot be encoded into a token", e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Decodes a token created by {@link Page#encodeToken(String, Class, Object, Class, Object)}
+     *
+     * @param attribute the name of the expected key attribute
+     * @param keyType   the type of the key attribute
+     * @param idType    the type of the id
+     * @param token     the token to decode
+     * @return the key and the id of the last entity of the previous page
+     * @throws IllegalArgumentException if the token is invalid or was created for another key attribute
+     */
+    static Object[] decodeToken(String attribute, Class<?> keyType, Class<?> idType, String token) {
+        try (var in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            if (!in.readUTF().equals(attribute))
+                throw new IllegalArgumentException("The page token was created for a different key attribute");
+            var res = new Object[]{readValue(in, box(keyType)), readValue(in, box(idType))};
+            if (res[0] == null || in.read() != -1)
+                throw new IllegalArgumentException("Malformed page token");
+            return res;
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (INTEGRAL_KEYS.contains(type)) {
+            out.writeByte(TAG_LONG);
+            out.writeLong(((Number) value).longValue());
+        } else if (TEXT_KEYS.containsKey(type) || type.isEnum()) {
+            out.writeByte(TAG_TEXT);
+            out.writeUTF(text(type, value));
+        } else
+            throw new IllegalArgumentException(String.format("Keys of type %s cannot be encoded into a token", type.getName()));
+    }
+
+    private static String text(Class<?> type, Object value) {
+        if (value instanceof Enum)
+            return ((Enum<?>) value).name();
+        if (type == Date.class)
+            return (value instanceof Timestamp ? (Timestamp) value : new Timestamp(((Date) value).getTime())).toString();
+        return value.toString();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readValue(DataInputStream in, Class<?> type) throws IOException {
+        var tag = in.readByte();
+        if (tag == TAG_NULL)
+            return null;
+        if (tag == TAG_LONG && INTEGRAL_KEYS.contains(type)) {
+            var value = in.readLong();
+            if (type == Long.class)
+                return value;
+            if (type == Integer.class)
+                return Math.toIntExact(value);
+            if (value < (type == Short.class ? Short.MIN_VALUE : Byte.MIN_VALUE) || value > (type == Short.class ? Short.MAX_VALUE : Byte.MAX_VALUE))
+                throw new IllegalArgumentException("The key is out of range");
+            return type == Short.class ? (Object) (short) value : (Object) (byte) value;
+        }
+        if (tag == TAG_TEXT && type.isEnum())
+            return Enum.valueOf((Class) type, in.readUTF());
+        if (tag == TAG_TEXT && TEXT_KEYS.containsKey(type))
+            return TEXT_KEYS.get(type).apply(in.readUTF());
+        throw new IllegalArgumentException("The page token does not hold a key of type " + type.getName());
+    }
+
+    private static Class<?> box(Class<?> type) {
+        return MethodType.methodType(type).wrap().returnType();
+    }
+}
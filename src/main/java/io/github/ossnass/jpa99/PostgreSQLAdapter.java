@@ -1,5 +1,16 @@
 package io.github.ossnass.jpa99;
 
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringJoiner;
+
 /**
  * This class represent an adapter to PostgreSQL database management system.
  * <p>
@@ -32,11 +43,26 @@ public class PostgreSQLAdapter extends DBAdapter {
         return new String[0];
     }
 
+    /**
+     * @deprecated use {@link DBAdapter#STATEMENT_CHANGE_PASSWORD}
+     */
+    @Deprecated
     @Override
     public String getChangeUserPassword() {
         return "ALTER USER %s PASSWORD '%s';";
     }
 
+    /**
+     * <code>ALTER USER</code> takes no bind parameters, the statement is generated by <code>format</code> which quotes the name and the password.
+     * The name is folded to lower case first, as PostgreSQL does with the unquoted names.
+     */
+    @Override
+    protected NativeStatement createNativeStatement(String name) {
+        if (STATEMENT_CHANGE_PASSWORD.equals(name))
+            return NativeStatement.generating(name, "SELECT format('ALTER USER %I PASSWORD %L', lower(?::text), ?::text)");
+        return super.createNativeStatement(name);
+    }
+
     @Override
     public String getAcquireUserRoles() {
         return "WITH RECURSIVE cte AS (SELECT oid FROM pg_roles WHERE rolname = current_user " +
@@ -47,4 +73,138 @@ public class PostgreSQLAdapter extends DBAdapter {
     public String getDriver() {
         return "org.postgresql.Driver";
     }
+
+    @Override
+    public String getValidationQuery() {
+        return "SELECT 1";
+    }
+
+    /**
+     * PostgreSQL wire protocol limits the number of bind parameters of a statement to 32767
+     */
+    @Override
+    public int getMaxQueryParameters() {
+        return Short.MAX_VALUE;
+    }
+
+    /**
+     * Streams the rows to the server using <code>COPY ... FROM STDIN</code> in CSV format.
+     * <p>
+     * The PostgreSQL JDBC driver is accessed reflectively, if the connection is not a PostgreSQL one the rows are inserted in batches.
+     */
+    @Override
+    public long bulkInsert(Connection connection, String table, List<String> columns, Iterator<Object[]> rows) throws SQLException {
+        var pgConnection = findDriverClass(connection, "org.postgresql.PGConnection");
+        if (pgConnection == null)
+            return super.bulkInsert(connection, table, columns, rows);
+        var sql = String.format("COPY %s (%s) FROM STDIN WITH (FORMAT csv)", table, String.join(", ", columns));
+        try {
+            var copyManager = pgConnection.getMethod("getCopyAPI").invoke(connection.unwrap(pgConnection));
+            return (Long) copyManager.getClass().getMethod("copyIn", String.class, Reader.class)
+                    .invoke(copyManager, sql, new CsvReader(rows));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new SQLException("COPY failed", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new SQLException("The PostgreSQL driver does not support COPY", e);
+        }
+    }
+
+    /**
+     * Writes the rows using multi-row <code>INSERT ... ON CONFLICT DO UPDATE</code> statements holding up to 1000 rows each.
+     * <p>
+     * A statement cannot update the same row twice, only the last row of each key is kept within a statement.
+     */
+    @Override
+    public long upsert(Connection connection, String table, String keyColumn, List<String> columns, Iterator<Object[]> rows) throws SQLException {
+        var keyIndex = columns.indexOf(keyColumn);
+        if (keyIndex < 0)
+            throw new IllegalArgumentException("The key column must be one of the written columns");
+        var updates = new StringJoiner(", ");
+        for (var column : columns)
+            if (!column.equals(keyColumn))
+                updates.add(column + " = EXCLUDED." + column);
+        var conflict = " ON CONFLICT (" + keyColumn + ") " + (updates.length() == 0 ? "DO NOTHING" : "DO UPDATE SET " + updates);
+        return executeMultiRow(connection, count -> insertStatement(table, columns, count) + conflict, columns.size(), rows, keyIndex);
+    }
+
+    /**
+     * Moves the sequence behind the <code>serial</code> or identity column with <code>setval</code>, nothing is done if the column has none
+     */
+    @Override
+    public void restartIdentity(Connection connection, String table, String idColumn) throws SQLException {
+        var sql = String.format("SELECT setval(pg_get_serial_sequence(?, ?), COALESCE(MAX(%s), 0) + 1, false) FROM %s", idColumn, table);
+        try (var statement = connection.prepareStatement(sql)) {
+            statement.setString(1, table);
+            statement.setString(2, idColumn);
+            statement.executeQuery().close();
+        }
+    }
+
+    /**
+     * Produces the CSV text of the rows as <code>COPY</code> reads it, without holding more than one row in memory
+     * <p>
+     * Timestamps are written in the time zone of the JVM with an explicit offset, a <code>timestamp</code> column keeps the local time
+     * as the JDBC driver would bind it, and a <code>timestamptz</code> column gets the right instant whatever the zone of the session.
+     */
+    static class CsvReader extends Reader {
+        private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm:ss.SSSSSSxxx");
+
+        private final Iterator<Object[]> rows;
+        private final StringBuilder buffer = new StringBuilder();
+        private int position;
+
+        CsvReader(Iterator<Object[]> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) {
+            if (length == 0)
+                return 0;
+            if (position == buffer.length()) {
+                if (!rows.hasNext())
+                    return -1;
+                buffer.setLength(0);
+                position = 0;
+                appendRow(rows.next());
+            }
+            var count = Math.min(length, buffer.length() - position);
+            buffer.getChars(position, position + count, chars, offset);
+            position += count;
+            return count;
+        }
+
+        private void appendRow(Object[] row) {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0)
+                    buffer.append(',');
+                appendValue(row[i]);
+            }
+            buffer.append('\n');
+        }
+
+        private void appendValue(Object value) {
+            // an unquoted empty value is NULL, so every other value is quoted
+            if (value == null)
+                return;
+            String text;
+            if (value instanceof byte[]) {
+                var bytes = (byte[]) value;
+                var hex = new StringBuilder(2 + bytes.length * 2).append("\\x");
+                for (var b : bytes)
+                    hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                text = hex.toString();
+            } else if (value instanceof Date && !(value instanceof java.sql.Date) && !(value instanceof java.sql.Time))
+                text = TIMESTAMP.format(((Date) value).toInstant().atZone(ZoneId.systemDefault()));
+            else
+                text = value.toString();
+            buffer.append('"').append(text.replace("\"", "\"\"")).append('"');
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
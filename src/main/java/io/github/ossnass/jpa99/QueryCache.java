@@ -0,0 +1,178 @@
+package io.github.ossnass.jpa99;
+
+import java.lang.invoke.SerializedLambda;
+import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Caches the results of the queries run by {@link JPARepository#queryCached(CacheableQuery)}, shared by all the repositories.
+ * <p>
+ * Jinq does not expose the parameters it binds, so a query is identified by the code of its lambda and the values it captures,
+ * which determine both the translated JPQL and its parameters.
+ * The results are dropped whenever an entity of the queried class, a subclass or a superclass is written.
+ */
+class QueryCache {
+
+    private final LruCache<Key, Object> results;
+    private long generation;
+
+    /**
+     * Creates a new cache
+     *
+     * @param maxSize the maximum number of cached results
+     * @param ttl     how long a result stays cached, null or zero to keep results until evicted or invalidated
+     * @throws IllegalArgumentException if the maximum size is not positive
+     */
+    QueryCache(int maxSize, Duration ttl) {
+        this.results = new LruCache<>(maxSize, ttl);
+    }
+
+    /**
+     * Builds the key identifying a query
+     *
+     * @param entityClass the queried class
+     * @param query       the query
+     * @return the key of the query
+     * @throws IllegalStateException if the captured values of the query cannot be read
+     */
+    static Key keyOf(Class<?> entityClass, CacheableQuery<?, ?> query) {
+        SerializedLambda lambda;
+        try {
+            var writeReplace = query.getClass().getDeclaredMethod("writeReplace");
+            if (!writeReplace.trySetAccessible())
+                throw new IllegalStateException(String.format("The query cannot be read, open the package of %s to JPA99",
+                        query.getClass().getName()));
+            var replaced = writeReplace.invoke(query);
+            if (!(replaced instanceof SerializedLambda))
+                return new Key(entityClass, query, List.of());
+            lambda = (SerializedLambda) replaced;
+        } catch (NoSuchMethodException e) {
+            // not a lambda, the query object identifies itself
+            return new Key(entityClass, query, List.of());
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("The query cannot be read", e);
+        }
+        var code = lambda.getImplClass() + "." + lambda.getImplMethodName() + lambda.getImplMethodSignature();
+        var captured = new ArrayList<>(lambda.getCapturedArgCount());
+        for (int i = 0; i < lambda.getCapturedArgCount(); i++)
+            captured.add(comparable(lambda.getCapturedArg(i)));
+        return new Key(entityClass, code, captured);
+    }
+
+    /**
+     * Returns the result cached for a query
+     *
+     * @param key the key of the query
+     * @return the cached result, null if not cached or expired
+     */
+    Object get(Key key) {
+        return results.get(key);
+    }
+
+    /**
+     * Returns the number of invalidations so far, to be passed to {@link QueryCache#put(Key, Object, long)}
+     *
+     * @return the number of invalidations so far
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches the result of a query, unless an entity was written since the query started
+     *
+     * @param key        the key of the query
+     * @param result     the result of the query, null results are not cached
+     * @param generation the value of {@link QueryCache#generation()} before the query ran
+     */
+    synchronized void put(Key key, Object result, long generation) {
+        if (result != null && generation == this.generation)
+            results.put(key, result);
+    }
+
+    /**
+     * Drops the results of the queries related to a written class
+     *
+     * @param entityClass the written class
+     */
+    synchronized void invalidate(Class<?> entityClass) {
+        generation++;
+        results.invalidateIf(key -> key.entityClass.isAssignableFrom(entityClass) || entityClass.isAssignableFrom(key.entityClass));
+    }
+
+    /**
+     * Drops all the results
+     */
+    synchronized void clear() {
+        generation++;
+        results.clear();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the cache
+     *
+     * @return a snapshot of the statistics of the cache
+     */
+    CacheStatistics getStatistics() {
+        return results.getStatistics();
+    }
+
+    /**
+     * Makes arrays compare by content
+     */
+    private static Object comparable(Object value) {
+        return value == null || !value.getClass().isArray() ? value : new ArrayValue(value);
+    }
+
+    private static class ArrayValue {
+        private final Object[] array;
+
+        private ArrayValue(Object array) {
+            this.array = new Object[]{array};
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ArrayValue && Arrays.deepEquals(array, ((ArrayValue) o).array);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(array);
+        }
+    }
+
+    /**
+     * The key of a cached query result
+     */
+    static class Key {
+        private final Class<?> entityClass;
+        private final Object code;
+        private final List<Object> captured;
+
+        private Key(Class<?> entityClass, Object code, List<Object> captured) {
+            this.entityClass = entityClass;
+            this.code = code;
+            this.captured = captured;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            var key = (Key) o;
+            return entityClass.equals(key.entityClass) && code.equals(key.code) && captured.equals(key.captured);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entityClass, code, captured);
+        }
+    }
+}
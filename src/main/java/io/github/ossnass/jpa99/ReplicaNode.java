@@ -0,0 +1,30 @@
+package io.github.ossnass.jpa99;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A read replica the user is connected to, with its own {@link EntityManagerFactory} and optional {@link ConnectionPool}
+ */
+class ReplicaNode {
+    final String url;
+    final EntityManagerFactory emf;
+    final ConnectionPool pool;
+    /**
+     * The number of reads in progress on this replica
+     */
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    ReplicaNode(String url, EntityManagerFactory emf, ConnectionPool pool) {
+        this.url = url;
+        this.emf = emf;
+        this.pool = pool;
+    }
+
+    void close() {
+        if (emf.isOpen())
+            emf.close();
+        if (pool != null)
+            pool.close();
+    }
+}
@@ -0,0 +1,15 @@
+package io.github.ossnass.jpa99;
+
+/**
+ * Defines how {@link UserManager} picks the read replica answering a read, see {@link DBAdapter#addReadReplica(String, int, String)}
+ */
+public enum ReplicaRouting {
+    /**
+     * The replicas are used in turn
+     */
+    ROUND_ROBIN,
+    /**
+     * The replica with the fewest reads in progress is used
+     */
+    LEAST_IN_FLIGHT
+}
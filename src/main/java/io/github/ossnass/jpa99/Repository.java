@@ -9,10 +9,17 @@ import java.lang.annotation.Target;
  * This annotation is used to annotate a class extending @{link JPARepository},
  * if that class is not annotated with this annotation, an error will be thrown.
  * 
- * The only value to be passed the ID of the repository 
+ * The value to be passed is the ID of the repository
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface Repository {
     String value();
+
+    /**
+     * Whether the repository is instantiated when logging in to translate its {@link JPARepository#warmUpQueries()}
+     *
+     * @return whether the repository queries are warmed up when logging in
+     */
+    boolean warmUp() default false;
 }
@@ -0,0 +1,122 @@
+package io.github.ossnass.jpa99;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Annotation processor writing an index of the classes annotated with {@link Repository} into
+ * {@link RepositoryIndexProcessor#INDEX_LOCATION}, so {@link UserManager} can find the repositories without scanning the classpath.
+ * <p>
+ * The index is a properties file mapping each repository id to the binary name of its class.
+ * Duplicate ids, and annotated classes that are not concrete subclasses of {@link JPARepository}, are reported as compilation errors.
+ * <p>
+ * The processor is registered as a service, so it runs whenever JPA99 is on the annotation processor path.
+ * Up to JDK 22 javac also runs it when JPA99 is only on the class path, since JDK 23 the processor path must be given,
+ * with the {@code annotationProcessorPaths} of the maven-compiler-plugin or the {@code annotationProcessor} configuration of Gradle.
+ * When only some classes are compiled, as IDEs do, the entries of the previous index whose classes are still annotated with the same id are kept.
+ * {@link UserManager} scans the packages whose index entries are missing or stale, so an outdated index only slows the log in down.
+ */
+@SupportedAnnotationTypes("io.github.ossnass.jpa99.Repository")
+public class RepositoryIndexProcessor extends AbstractProcessor {
+
+    /**
+     * The location of the repository index inside the jar
+     */
+    public static final String INDEX_LOCATION = "META-INF/jpa99/repositories.index";
+
+    private final Map<String, String> index = new TreeMap<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        var messager = processingEnv.getMessager();
+        var types = processingEnv.getTypeUtils();
+        var repositoryType = types.erasure(processingEnv.getElementUtils().getTypeElement(JPARepository.class.getCanonicalName()).asType());
+        for (var element : roundEnv.getElementsAnnotatedWith(Repository.class)) {
+            if (element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT)
+                    || !types.isSubtype(types.erasure(element.asType()), repositoryType)) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "A class annotated by Repository must be a concrete subclass of JPARepository", element);
+                continue;
+            }
+            var id = element.getAnnotation(Repository.class).value();
+            var name = processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString();
+            var existing = index.putIfAbsent(id, name);
+            if (existing != null && !existing.equals(name))
+                messager.printMessage(Diagnostic.Kind.ERROR, String.format("Database controller %s already exists in %s", id, existing), element);
+        }
+        if (roundEnv.processingOver() && !index.isEmpty()) {
+            mergePreviousIndex();
+            writeIndex();
+        }
+        return false;
+    }
+
+    /**
+     * Adds the entries of the index written by a previous compilation whose classes were not compiled this time,
+     * as long as they are still annotated with the same id
+     */
+    private void mergePreviousIndex() {
+        var previous = new Properties();
+        try {
+            var resource = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX_LOCATION);
+            try (var reader = new InputStreamReader(resource.openInputStream(), StandardCharsets.UTF_8)) {
+                previous.load(reader);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // no index was written before
+            return;
+        }
+        var elements = processingEnv.getElementUtils();
+        for (var id : previous.stringPropertyNames()) {
+            if (index.containsKey(id))
+                continue;
+            var name = previous.getProperty(id);
+            var element = elements.getTypeElement(name.replace('$', '.'));
+            var annotation = element == null ? null : element.getAnnotation(Repository.class);
+            if (annotation != null && annotation.value().equals(id) && !index.containsValue(name))
+                index.put(id, name);
+        }
+    }
+
+    private void writeIndex() {
+        try {
+            var resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_LOCATION);
+            try (var writer = new OutputStreamWriter(resource.openOutputStream(), StandardCharsets.UTF_8)) {
+                writer.write("# Generated by " + getClass().getName() + "\n");
+                for (var entry : index.entrySet())
+                    writer.write(escapeKey(entry.getKey()) + "=" + entry.getValue() + "\n");
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write the repository index: " + e.getMessage());
+        }
+    }
+
+    private static String escapeKey(String key) {
+        var escaped = new StringBuilder(key.length());
+        for (var c : key.toCharArray()) {
+            if ("\\=: #!".indexOf(c) >= 0)
+                escaped.append('\\');
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
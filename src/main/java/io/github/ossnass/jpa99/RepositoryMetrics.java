@@ -0,0 +1,90 @@
+package io.github.ossnass.jpa99;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latency histograms and error counters of the operations of a repository, see {@link UserManager#getRepositoryMetrics(String)}
+ */
+public class RepositoryMetrics implements RepositoryMetricsMXBean {
+    private static final RepositoryOperation[] OPERATIONS = RepositoryOperation.values();
+
+    private final String repository;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+    private final AtomicLongArray errors = new AtomicLongArray(OPERATIONS.length);
+
+    RepositoryMetrics(String repository) {
+        this.repository = repository;
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Records an operation that started at the given time and ends now
+     *
+     * @param operation the operation
+     * @param start     the value of {@link System#nanoTime()} when the operation started
+     * @param failed    whether the operation threw an exception
+     */
+    void record(RepositoryOperation operation, long start, boolean failed) {
+        var nanos = System.nanoTime() - start;
+        histograms[operation.ordinal()].record(nanos);
+        if (failed)
+            errors.incrementAndGet(operation.ordinal());
+        var recorder = UserManager.getUserManager().getMetricsRecorder();
+        if (recorder != null)
+            recorder.recordOperation(repository, operation, nanos, failed);
+    }
+
+    @Override
+    public String getRepository() {
+        return repository;
+    }
+
+    /**
+     * Returns the latency histogram of an operation
+     *
+     * @param operation the operation
+     * @return the latency histogram of the operation
+     */
+    public LatencyHistogram getHistogram(RepositoryOperation operation) {
+        return histograms[operation.ordinal()];
+    }
+
+    /**
+     * Returns the number of calls of an operation that threw an exception
+     *
+     * @param operation the operation
+     * @return the number of failed calls
+     */
+    public long getErrors(RepositoryOperation operation) {
+        return errors.get(operation.ordinal());
+    }
+
+    /**
+     * Returns a snapshot of the measurements of an operation
+     *
+     * @param operation the operation
+     * @return the statistics of the operation
+     */
+    public OperationStatistics getStatistics(RepositoryOperation operation) {
+        return new OperationStatistics(getHistogram(operation), getErrors(operation));
+    }
+
+    @Override
+    public Map<String, OperationStatistics> getOperations() {
+        var res = new LinkedHashMap<String, OperationStatistics>();
+        for (var operation : OPERATIONS)
+            res.put(operation.name(), getStatistics(operation));
+        return res;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i].reset();
+            errors.set(i, 0);
+        }
+    }
+}
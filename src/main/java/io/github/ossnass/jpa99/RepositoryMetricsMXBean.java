@@ -0,0 +1,29 @@
+package io.github.ossnass.jpa99;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link RepositoryMetrics}, registered by {@link UserManager} under
+ * <code>io.github.ossnass.jpa99:type=Repository,name=&lt;repository id&gt;</code>
+ */
+public interface RepositoryMetricsMXBean {
+
+    /**
+     * Returns the id of the repository
+     *
+     * @return the id of the repository
+     */
+    String getRepository();
+
+    /**
+     * Returns the statistics of each operation of the repository
+     *
+     * @return the statistics of each operation mapped by the name of the operation
+     */
+    Map<String, OperationStatistics> getOperations();
+
+    /**
+     * Clears the measurements of the repository
+     */
+    void reset();
+}
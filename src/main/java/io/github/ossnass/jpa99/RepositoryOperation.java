@@ -0,0 +1,69 @@
+package io.github.ossnass.jpa99;
+
+/**
+ * The operations of {@link JPARepository} measured by {@link RepositoryMetrics}
+ */
+public enum RepositoryOperation {
+    /**
+     * {@link JPARepository#saveAndFlush(Object)}
+     */
+    SAVE,
+    /**
+     * {@link JPARepository#saveAndFlushAll(java.util.List)}
+     */
+    SAVE_ALL,
+    /**
+     * {@link JPARepository#findById(Object)}, including the values served by the cache
+     */
+    FIND,
+    /**
+     * {@link JPARepository#findAllById(java.util.List)}
+     */
+    FIND_ALL,
+    /**
+     * {@link JPARepository#findPage(String, int, String)}
+     */
+    FIND_PAGE,
+    /**
+     * {@link JPARepository#findAllAs(Class, String...)}, {@link JPARepository#findAllColumns(String...)}
+     * and {@link JPARepository#project(java.util.function.Function)}
+     */
+    PROJECT,
+    /**
+     * {@link JPARepository#queryCached(CacheableQuery)}, including the results served by the cache
+     */
+    CACHED_QUERY,
+    /**
+     * {@link JPARepository#bulkInsert(Iterable)} and {@link JPARepository#bulkInsert(java.util.stream.Stream)}
+     */
+    BULK_INSERT,
+    /**
+     * {@link JPARepository#upsertAll(Iterable)}
+     */
+    UPSERT,
+    /**
+     * {@link JPARepository#exportSnapshot(java.nio.file.Path)}
+     */
+    EXPORT_SNAPSHOT,
+    /**
+     * {@link JPARepository#importSnapshot(java.nio.file.Path)}
+     */
+    IMPORT_SNAPSHOT,
+    /**
+     * The processing of a chunk by {@link JPARepository#processInChunks(java.util.function.Consumer, ChunkedProcessingConfig)}, each attempt is measured
+     */
+    PROCESS_CHUNK,
+    /**
+     * {@link JPARepository#delete(Object)}
+     */
+    DELETE,
+    /**
+     * {@link JPARepository#deleteAll(java.util.List)}, {@link JPARepository#deleteAllById(java.util.List)}
+     * and {@link JPARepository#deleteEverything()}
+     */
+    DELETE_ALL,
+    /**
+     * {@link JPARepository#createStream()} and {@link JPARepository#streamAll()}, only the creation of the stream is measured
+     */
+    CREATE_STREAM
+}
@@ -0,0 +1,463 @@
+package io.github.ossnass.jpa99;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * A binary columnar snapshot of the rows of a table, written by {@link JPARepository#exportSnapshot(Path)}.
+ * <p>
+ * The file starts with a header holding the table and its typed columns, followed by row groups of up to {@link TableSnapshot#ROWS_PER_GROUP} rows.
+ * Each row group stores its columns one after the other, a column being a bitmap of its null values followed by the other values.
+ * Row groups are prefixed by their length, so they are read one at a time with positional reads into a reused buffer.
+ * <pre>
+ * "JPA99SNP" version:int headerLength:int header
+ * (rows:int length:long columns)* 0:int
+ * </pre>
+ */
+final class TableSnapshot {
+
+    static final int ROWS_PER_GROUP = 4096;
+    private static final int BYTES_PER_GROUP = 32 << 20;
+    private static final byte[] MAGIC = "JPA99SNP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    /**
+     * The types of values a snapshot can store, the order of the constants is part of the format
+     */
+    enum ValueType {
+        BOOLEAN(Boolean.class), BYTE(Byte.class), SHORT(Short.class), INT(Integer.class), LONG(Long.class),
+        FLOAT(Float.class), DOUBLE(Double.class), CHAR(Character.class), STRING(String.class), BYTES(byte[].class),
+        BIG_DECIMAL(BigDecimal.class), BIG_INTEGER(BigInteger.class), SQL_DATE(java.sql.Date.class), SQL_TIME(Time.class),
+        TIMESTAMP(Timestamp.class), DATE(Date.class), LOCAL_DATE(LocalDate.class), LOCAL_TIME(LocalTime.class),
+        LOCAL_DATE_TIME(LocalDateTime.class), INSTANT(Instant.class), UUID(java.util.UUID.class);
+
+        private final Class<?> javaType;
+
+        ValueType(Class<?> javaType) {
+            this.javaType = javaType;
+        }
+
+        /**
+         * Finds the type storing the values of a Java type
+         *
+         * @param javaType the Java type
+         * @return the type storing the values
+         * @throws IllegalStateException if the values of the Java type cannot be stored
+         */
+        static ValueType of(Class<?> javaType) {
+            for (var type : values())
+                if (type.javaType == javaType)
+                    return type;
+            throw new IllegalStateException(String.format("Values of type %s cannot be stored in a snapshot", javaType.getName()));
+        }
+    }
+
+    private TableSnapshot() {
+    }
+
+    /**
+     * Writes the rows of a table into a snapshot file, replacing the file if it exists.
+     * <p>
+     * The rows are written into a temporary file of the same directory which is then moved atomically,
+     * so the file is never left half written.
+     *
+     * @param file    the snapshot file
+     * @param table   the table
+     * @param columns the columns of the table
+     * @param types   the types of the values of the columns
+     * @param rows    the values of each row, in the order of the columns
+     * @return the number of written rows
+     * @throws IOException           if the file cannot be written
+     * @throws IllegalStateException if the values of a column cannot be stored
+     */
+    static long write(Path file, String table, List<String> columns, List<Class<?>> types, Iterator<Object[]> rows) throws IOException {
+        var valueTypes = new ValueType[types.size()];
+        for (int i = 0; i < valueTypes.length; i++)
+            valueTypes[i] = ValueType.of(types.get(i));
+        var target = file.toAbsolutePath();
+        var temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            var count = write(temp, table, columns, valueTypes, rows);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            return count;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static long write(Path file, String table, List<String> columns, ValueType[] valueTypes, Iterator<Object[]> rows) throws IOException {
+        var count = 0L;
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            var header = new ByteArrayOutputStream();
+            var headerOut = new DataOutputStream(header);
+            writeBytes(headerOut, table.getBytes(StandardCharsets.UTF_8));
+            headerOut.writeInt(columns.size());
+            for (int i = 0; i < valueTypes.length; i++) {
+                writeBytes(headerOut, columns.get(i).getBytes(StandardCharsets.UTF_8));
+                headerOut.writeByte(valueTypes[i].ordinal());
+            }
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(header.size());
+            header.writeTo(out);
+            var group = new ArrayList<Object[]>(ROWS_PER_GROUP);
+            var groupBytes = 0L;
+            var payload = new ByteArrayOutputStream(1 << 16);
+            while (rows.hasNext()) {
+                var row = rows.next();
+                group.add(row);
+                groupBytes += estimate(row);
+                if (group.size() == ROWS_PER_GROUP || groupBytes >= BYTES_PER_GROUP) {
+                    count += writeGroup(out, payload, valueTypes, group);
+                    groupBytes = 0;
+                }
+            }
+            if (!group.isEmpty())
+                count += writeGroup(out, payload, valueTypes, group);
+            out.writeInt(0);
+        }
+        return count;
+    }
+
+    private static long estimate(Object[] row) {
+        var bytes = 0L;
+        for (var value : row) {
+            if (value instanceof String)
+                bytes += 4 + 3L * ((String) value).length();
+            else if (value instanceof byte[])
+                bytes += 4 + ((byte[]) value).length;
+            else
+                bytes += 16;
+        }
+        return bytes;
+    }
+
+    private static int writeGroup(DataOutputStream out, ByteArrayOutputStream payload, ValueType[] types, List<Object[]> group) throws IOException {
+        payload.reset();
+        var data = new DataOutputStream(payload);
+        var size = group.size();
+        for (int column = 0; column < types.length; column++) {
+            var nulls = new byte[(size + 7) / 8];
+            for (int row = 0; row < size; row++)
+                if (group.get(row)[column] == null)
+                    nulls[row / 8] |= 1 << (row % 8);
+            data.write(nulls);
+            for (var row : group) {
+                if (row[column] != null)
+                    writeValue(data, types[column], row[column]);
+            }
+        }
+        out.writeInt(size);
+        out.writeLong(payload.size());
+        payload.writeTo(out);
+        group.clear();
+        return size;
+    }
+
+    private static void writeValue(DataOutputStream out, ValueType type, Object value) throws IOException {
+        switch (type) {
+            case BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            case BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case SHORT:
+                out.writeShort((Short) value);
+                break;
+            case INT:
+                out.writeInt((Integer) value);
+                break;
+            case LONG:
+                out.writeLong((Long) value);
+                break;
+            case FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case CHAR:
+                out.writeChar((Character) value);
+                break;
+            case STRING:
+                writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+                break;
+            case BYTES:
+                writeBytes(out, (byte[]) value);
+                break;
+            case BIG_DECIMAL:
+                out.writeInt(((BigDecimal) value).scale());
+                writeBytes(out, ((BigDecimal) value).unscaledValue().toByteArray());
+                break;
+            case BIG_INTEGER:
+                writeBytes(out, ((BigInteger) value).toByteArray());
+                break;
+            case SQL_DATE:
+                out.writeLong(((java.sql.Date) value).toLocalDate().toEpochDay());
+                break;
+            case SQL_TIME:
+                out.writeLong(((Time) value).toLocalTime().toNanoOfDay());
+                break;
+            case TIMESTAMP:
+            case INSTANT:
+                var instant = value instanceof Timestamp ? ((Timestamp) value).toInstant() : (Instant) value;
+                out.writeLong(instant.getEpochSecond());
+                out.writeInt(instant.getNano());
+                break;
+            case DATE:
+                out.writeLong(((Date) value).getTime());
+                break;
+            case LOCAL_DATE:
+                out.writeLong(((LocalDate) value).toEpochDay());
+                break;
+            case LOCAL_TIME:
+                out.writeLong(((LocalTime) value).toNanoOfDay());
+                break;
+            case LOCAL_DATE_TIME:
+                out.writeLong(((LocalDateTime) value).toLocalDate().toEpochDay());
+                out.writeLong(((LocalDateTime) value).toLocalTime().toNanoOfDay());
+                break;
+            case UUID:
+                out.writeLong(((UUID) value).getMostSignificantBits());
+                out.writeLong(((UUID) value).getLeastSignificantBits());
+                break;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Opens a snapshot file
+     *
+     * @param file the snapshot file
+     * @return the reader of the snapshot, to be closed
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    static Reader open(Path file) throws IOException {
+        return new Reader(FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    /**
+     * Reads the rows of a snapshot, one row group at a time into a buffer reused by the next groups
+     */
+    static class Reader implements Iterator<Object[]>, Closeable {
+        private final FileChannel channel;
+        private final String table;
+        private final List<String> columns;
+        private final ValueType[] types;
+        private long position;
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private Object[][] rows = new Object[0][];
+        private int next;
+        private boolean ended;
+
+        private Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            try {
+                var prefix = read(MAGIC.length + 8);
+                var magic = new byte[MAGIC.length];
+                prefix.get(magic);
+                if (!Arrays.equals(magic, MAGIC))
+                    throw new IOException("The file is not a snapshot");
+                var version = prefix.getInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported snapshot version " + version);
+                var header = read(prefix.getInt());
+                table = new String(readBytes(header), StandardCharsets.UTF_8);
+                var count = header.getInt();
+                var names = new ArrayList<String>(count);
+                types = new ValueType[count];
+                for (int i = 0; i < count; i++) {
+                    names.add(new String(readBytes(header), StandardCharsets.UTF_8));
+                    types[i] = ValueType.values()[header.get()];
+                }
+                columns = Collections.unmodifiableList(names);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the table the rows were exported from
+         *
+         * @return the table the rows were exported from
+         */
+        String getTable() {
+            return table;
+        }
+
+        /**
+         * Returns the columns of the rows
+         *
+         * @return the columns of the rows
+         */
+        List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * Returns the types of the values of the columns
+         *
+         * @return the types of the values of the columns
+         */
+        List<Class<?>> getTypes() {
+            var res = new ArrayList<Class<?>>(types.length);
+            for (var type : types)
+                res.add(type.javaType);
+            return res;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == rows.length && !ended) {
+                try {
+                    readGroup();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next < rows.length;
+        }
+
+        @Override
+        public Object[] next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            var row = rows[next];
+            rows[next++] = null;
+            return row;
+        }
+
+        private void readGroup() throws IOException {
+            var size = read(4).getInt();
+            if (size == 0) {
+                ended = true;
+                return;
+            }
+            var length = read(8).getLong();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("The row group is too large");
+            var data = read((int) length);
+            rows = new Object[size][types.length];
+            next = 0;
+            var nulls = new byte[(size + 7) / 8];
+            for (int column = 0; column < types.length; column++) {
+                data.get(nulls);
+                for (int row = 0; row < size; row++)
+                    if ((nulls[row / 8] & (1 << (row % 8))) == 0)
+                        rows[row][column] = readValue(data, types[column]);
+            }
+        }
+
+        /**
+         * Reads the next bytes of the file, the returned buffer is only valid until the next read
+         */
+        private ByteBuffer read(int length) throws IOException {
+            if (position + length > channel.size())
+                throw new IOException("The snapshot is truncated");
+            if (buffer.capacity() < length)
+                buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("The snapshot is truncated");
+            }
+            position += length;
+            return buffer.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static Object readValue(ByteBuffer in, ValueType type) {
+        switch (type) {
+            case BOOLEAN:
+                return in.get() != 0;
+            case BYTE:
+                return in.get();
+            case SHORT:
+                return in.getShort();
+            case INT:
+                return in.getInt();
+            case LONG:
+                return in.getLong();
+            case FLOAT:
+                return in.getFloat();
+            case DOUBLE:
+                return in.getDouble();
+            case CHAR:
+                return in.getChar();
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case BYTES:
+                return readBytes(in);
+            case BIG_DECIMAL:
+                var scale = in.getInt();
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(in));
+            case SQL_DATE:
+                return java.sql.Date.valueOf(LocalDate.ofEpochDay(in.getLong()));
+            case SQL_TIME:
+                return Time.valueOf(LocalTime.ofNanoOfDay(in.getLong()));
+            case TIMESTAMP:
+                return Timestamp.from(Instant.ofEpochSecond(in.getLong(), in.getInt()));
+            case INSTANT:
+                return Instant.ofEpochSecond(in.getLong(), in.getInt());
+            case DATE:
+                // a timestamp is a date every driver binds
+                return new Timestamp(in.getLong());
+            case LOCAL_DATE:
+                return LocalDate.ofEpochDay(in.getLong());
+            case LOCAL_TIME:
+                return LocalTime.ofNanoOfDay(in.getLong());
+            case LOCAL_DATE_TIME:
+                return LocalDateTime.of(LocalDate.ofEpochDay(in.getLong()), LocalTime.ofNanoOfDay(in.getLong()));
+            case UUID:
+                return new UUID(in.getLong(), in.getLong());
+            default:
+                throw new IllegalStateException("Unknown value type " + type);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        var bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+}
@@ -1,22 +1,58 @@
 package io.github.ossnass.jpa99;
 
 import io.github.classgraph.ClassGraph;
+import org.jinq.jpa.JinqJPAStreamProvider;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
-import javax.persistence.Query;
+import javax.persistence.PersistenceException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
 
-public class UserManager {
+public class UserManager implements UserManagerMXBean {
 
     public static final String JPA_PROPERTY_DRIVER = "javax.persistence.jdbc.driver";
     public static final String JPA_PROPERTY_URL = "javax.persistence.jdbc.url";
     public static final String JPA_PROPERTY_USERNAME = "javax.persistence.jdbc.user";
     public static final String JPA_PROPERTY_PASSWORD = "javax.persistence.jdbc.password";
+    public static final String JPA_PROPERTY_NON_JTA_DATA_SOURCE = "javax.persistence.nonJtaDataSource";
+    public static final String HIBERNATE_PROPERTY_BATCH_SIZE = "hibernate.jdbc.batch_size";
+    public static final String HIBERNATE_PROPERTY_ORDER_INSERTS = "hibernate.order_inserts";
+    public static final String HIBERNATE_PROPERTY_ORDER_UPDATES = "hibernate.order_updates";
+    public static final String ECLIPSELINK_PROPERTY_BATCH_WRITING = "eclipselink.jdbc.batch-writing";
+    public static final String ECLIPSELINK_PROPERTY_BATCH_SIZE = "eclipselink.jdbc.batch-writing.size";
+    public static final String HIBERNATE_HINT_FETCH_SIZE = "org.hibernate.fetchSize";
+    public static final String ECLIPSELINK_HINT_FETCH_SIZE = "eclipselink.jdbc.fetch-size";
+    public static final String HIBERNATE_HINT_READ_ONLY = "org.hibernate.readOnly";
+    public static final String ECLIPSELINK_HINT_READ_ONLY = "eclipselink.read-only";
+    public static final String JMX_DOMAIN = "io.github.ossnass.jpa99";
 
-    private static UserManager um;
+    private static final UserManager um = new UserManager();
     /**
      * The properties of the URL connection
      */
@@ -25,11 +61,26 @@ public class UserManager {
      * The roles of the user
      */
     private final Set<String> roles;
+    /**
+     * The repositories instantiated so far, mapped by their ids
+     */
     private final Map<String, JPARepository> repositories;
+    /**
+     * The repository classes found when logging in, mapped by their ids
+     */
+    private volatile Map<String, Class<?>> repositoryClasses = Map.of();
     /**
      * The entity manager factory
      */
     private EntityManagerFactory emf;
+    /**
+     * The JINQ stream provider shared by all the repositories, so its query translation cache is shared as well
+     */
+    private JinqJPAStreamProvider streamProvider;
+    /**
+     * Whether the repository queries are warmed up in a background thread
+     */
+    private boolean warmUpInBackground;
     /**
      * The name of the persistence unit
      */
@@ -44,16 +95,88 @@ public class UserManager {
     private String[] packageList;
     private String url;
     private Exception lastException;
+    /**
+     * The way repositories acquire their entity managers
+     */
+    private EntityManagerScope entityManagerScope = EntityManagerScope.SHARED;
+    /**
+     * The entity manager bound to the current thread
+     */
+    private final ThreadLocal<EntityManager> threadEntityManager;
+    /**
+     * All the entity managers bound to threads, closed when logging out
+     */
+    private final Set<EntityManager> threadEntityManagers;
+    /**
+     * The entity manager owned by the asynchronous task running on the current thread
+     */
+    private final ThreadLocal<EntityManager> taskEntityManager;
+    /**
+     * The executor running asynchronous repository calls, null to use the default one
+     */
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+    /**
+     * The read replicas of the current session
+     */
+    private volatile List<ReplicaNode> replicas = List.of();
+    /**
+     * The way the replica answering a read is picked
+     */
+    private ReplicaRouting replicaRouting = ReplicaRouting.ROUND_ROBIN;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    /**
+     * The entity manager on a read replica bound to the current thread, used by streams
+     */
+    private final ThreadLocal<EntityManager> threadReplicaEntityManager;
+    /**
+     * The entity manager on the primary database bound to the current thread, used by read-only streams
+     */
+    private final ThreadLocal<EntityManager> threadReadOnlyEntityManager;
+    /**
+     * The measurements of the repositories, mapped by their ids, kept across sessions
+     */
+    private final Map<String, RepositoryMetrics> repositoryMetrics;
+    /**
+     * How long each phase of the last log in took, indexed by {@link LogInPhase#ordinal()}
+     */
+    private final AtomicLongArray logInPhaseNanos;
+    private volatile MetricsRecorder metricsRecorder;
+    /**
+     * The cache of {@link JPARepository#queryCached(CacheableQuery)}, null when disabled
+     */
+    private volatile QueryCache queryCache;
+    /**
+     * The number of entities written before flushing and clearing the persistence context
+     */
+    private int batchSize = 50;
+    /**
+     * The number of rows fetched per round trip by streaming reads
+     */
+    private int fetchSize = 500;
+    /**
+     * The configuration of the connection pool, null to let the persistence provider manage connections
+     */
+    private ConnectionPoolConfig connectionPoolConfig;
+    /**
+     * The connection pool of the current session
+     */
+    private ConnectionPool connectionPool;
 
     private UserManager() {
         props = new Properties();
         roles = new HashSet<>();
-        repositories = new HashMap<>();
+        repositories = new ConcurrentHashMap<>();
+        threadEntityManager = new ThreadLocal<>();
+        threadEntityManagers = ConcurrentHashMap.newKeySet();
+        taskEntityManager = new ThreadLocal<>();
+        threadReplicaEntityManager = new ThreadLocal<>();
+        threadReadOnlyEntityManager = new ThreadLocal<>();
+        repositoryMetrics = new ConcurrentHashMap<>();
+        logInPhaseNanos = new AtomicLongArray(LogInPhase.values().length);
     }
 
     public static UserManager getUserManager() {
-        if (um == null)
-            um = new UserManager();
         return um;
     }
 
@@ -95,6 +218,14 @@ public class UserManager {
         return this;
     }
 
+    /**
+     * Returns the currently used database adapter
+     *
+     * @return the currently used database adapter
+     */
+    public DBAdapter getDatabaseAdapter() {
+        return dbImplAdapter;
+    }
 
     /**
      * Changes the URL to the database.
@@ -140,6 +271,483 @@ public class UserManager {
         return this;
     }
 
+    /**
+     * Returns the way repositories acquire their {@link EntityManager}
+     *
+     * @return the way repositories acquire their {@link EntityManager}
+     */
+    public EntityManagerScope getEntityManagerScope() {
+        return entityManagerScope;
+    }
+
+    /**
+     * Changes the way repositories acquire their {@link EntityManager}.
+     * <p>
+     * The old connection is closed when changing the scope, as the repositories are created again on the next log in
+     *
+     * @param scope the new scope
+     * @return the modified user manager
+     * @throws IllegalArgumentException if the scope is null
+     */
+    public UserManager setEntityManagerScope(EntityManagerScope scope) {
+        if (scope == null)
+            throw new IllegalArgumentException("The entity manager scope cannot be null");
+        logOut();
+        entityManagerScope = scope;
+        return this;
+    }
+
+    /**
+     * Returns the default number of entities written in a single JDBC batch
+     *
+     * @return the default number of entities written in a single JDBC batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Changes the default number of entities written in a single JDBC batch.
+     * <p>
+     * The value is passed to the persistence provider when logging in, and used by {@link JPARepository#saveAndFlushAll(List)}
+     * to flush and clear the persistence context, it can be overridden per repository using {@link JPARepository#setBatchSize(int)}
+     *
+     * @param batchSize the number of entities written in a single JDBC batch
+     * @return the modified user manager
+     * @throws IllegalArgumentException if the batch size is not positive
+     */
+    public UserManager setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("The batch size must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Returns the default number of rows fetched per round trip by streaming reads
+     *
+     * @return the default number of rows fetched per round trip by streaming reads
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Changes the default number of rows fetched per round trip by streaming reads.
+     * <p>
+     * Used by {@link JPARepository#streamAll()} and {@link JPARepository#forEachBatch(java.util.function.Consumer)},
+     * it can be overridden per repository using {@link JPARepository#setFetchSize(int)}
+     *
+     * @param fetchSize the number of rows fetched per round trip
+     * @return the modified user manager
+     * @throws IllegalArgumentException if the fetch size is not positive
+     */
+    public UserManager setFetchSize(int fetchSize) {
+        if (fetchSize <= 0)
+            throw new IllegalArgumentException("The fetch size must be positive");
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Returns the configuration of the connection pool
+     *
+     * @return the configuration of the connection pool, null if pooling is left to the persistence provider
+     */
+    public ConnectionPoolConfig getConnectionPoolConfig() {
+        return connectionPoolConfig;
+    }
+
+    /**
+     * Changes the configuration of the connection pool.
+     * <p>
+     * When set, a {@link ConnectionPool} is created when logging in and handed to the persistence provider as its data source.
+     * The old connection is closed when changing the configuration.
+     *
+     * @param config the configuration of the connection pool, null to let the persistence provider manage connections
+     * @return the modified user manager
+     */
+    public UserManager setConnectionPoolConfig(ConnectionPoolConfig config) {
+        logOut();
+        connectionPoolConfig = config;
+        return this;
+    }
+
+    /**
+     * Returns the statistics of the connection pool
+     *
+     * @return the statistics of the connection pool, null if not logged in or not using a pool
+     */
+    public ConnectionPool.Statistics getConnectionPoolStatistics() {
+        var pool = connectionPool;
+        return pool == null ? null : pool.getStatistics();
+    }
+
+    /**
+     * Opens a JDBC connection to the primary database, taken from the connection pool if there is one.
+     * <p>
+     * Used by the operations bypassing the JPA provider, the caller must close the connection.
+     *
+     * @return the connection
+     * @throws SQLException          if the connection cannot be opened
+     * @throws IllegalStateException if the user is not logged in
+     */
+    Connection openConnection() throws SQLException {
+        if (!isLoggedIn())
+            throw new IllegalStateException("You need to be logged in to open a connection");
+        var pool = connectionPool;
+        if (pool != null)
+            return pool.getConnection();
+        return DriverManager.getConnection(url, props.getProperty(JPA_PROPERTY_USERNAME), props.getProperty(JPA_PROPERTY_PASSWORD));
+    }
+
+    /**
+     * Returns the {@link EntityManager} bound to the current thread, creating it if needed
+     *
+     * @return the {@link EntityManager} bound to the current thread
+     * @throws IllegalStateException if the user is not logged in
+     */
+    EntityManager getThreadEntityManager() {
+        var manager = threadEntityManager.get();
+        if (manager == null || !manager.isOpen()) {
+            if (!isLoggedIn())
+                throw new IllegalStateException("You need to be logged in to use the entity manager");
+            manager = emf.createEntityManager();
+            threadEntityManager.set(manager);
+            threadEntityManagers.add(manager);
+        }
+        return manager;
+    }
+
+    /**
+     * Returns the {@link EntityManager} bound to the current thread without creating it
+     *
+     * @return the {@link EntityManager} bound to the current thread, null if there is none
+     */
+    EntityManager peekThreadEntityManager() {
+        var manager = threadEntityManager.get();
+        return manager != null && manager.isOpen() ? manager : null;
+    }
+
+    /**
+     * Closes the {@link EntityManager} bound to the current thread if any.
+     * <p>
+     * Call this when a worker thread is done with its task, so the next task starts with an empty persistence context.
+     */
+    public void closeThreadEntityManager() {
+        for (var local : List.of(threadEntityManager, threadReplicaEntityManager, threadReadOnlyEntityManager)) {
+            var manager = local.get();
+            local.remove();
+            if (manager != null) {
+                threadEntityManagers.remove(manager);
+                if (manager.isOpen())
+                    manager.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the way the read replica answering a read is picked
+     *
+     * @return the way the read replica answering a read is picked
+     */
+    public ReplicaRouting getReplicaRouting() {
+        return replicaRouting;
+    }
+
+    /**
+     * Changes the way the read replica answering a read is picked, see {@link DBAdapter#addReadReplica(String, int, String)}
+     *
+     * @param replicaRouting the way the read replica answering a read is picked
+     * @return the modified user manager
+     * @throws IllegalArgumentException if the routing is null
+     */
+    public UserManager setReplicaRouting(ReplicaRouting replicaRouting) {
+        if (replicaRouting == null)
+            throw new IllegalArgumentException("The replica routing cannot be null");
+        this.replicaRouting = replicaRouting;
+        return this;
+    }
+
+    /**
+     * Picks the read replica answering the next read according to {@link UserManager#getReplicaRouting()}
+     *
+     * @return the read replica, null if there are none
+     */
+    ReplicaNode chooseReplica() {
+        var nodes = replicas;
+        if (nodes.isEmpty())
+            return null;
+        if (replicaRouting == ReplicaRouting.LEAST_IN_FLIGHT) {
+            var best = nodes.get(0);
+            for (var node : nodes)
+                if (node.inFlight.get() < best.inFlight.get())
+                    best = node;
+            return best;
+        }
+        return nodes.get(Math.floorMod(nextReplica.getAndIncrement(), nodes.size()));
+    }
+
+    /**
+     * Returns the {@link EntityManager} on a read replica bound to the current thread, creating it if needed.
+     * <p>
+     * The replica is picked when the {@link EntityManager} is created and kept until {@link UserManager#closeThreadEntityManager()}.
+     *
+     * @return the {@link EntityManager} on a read replica, null if there are no replicas
+     */
+    EntityManager getThreadReplicaEntityManager() {
+        var manager = threadReplicaEntityManager.get();
+        if (manager == null || !manager.isOpen()) {
+            var node = chooseReplica();
+            if (node == null)
+                return null;
+            manager = node.emf.createEntityManager();
+            threadReplicaEntityManager.set(manager);
+            threadEntityManagers.add(manager);
+        }
+        return manager;
+    }
+
+    /**
+     * Returns the {@link EntityManager} on the primary database bound to the current thread for read-only streams, creating it if needed.
+     * <p>
+     * It is kept apart from the other entity managers, so the entities it loads never enter their persistence contexts.
+     *
+     * @return the {@link EntityManager} for read-only streams
+     */
+    EntityManager getThreadReadOnlyEntityManager() {
+        var manager = threadReadOnlyEntityManager.get();
+        if (manager == null || !manager.isOpen()) {
+            manager = emf.createEntityManager();
+            threadReadOnlyEntityManager.set(manager);
+            threadEntityManagers.add(manager);
+        }
+        return manager;
+    }
+
+    /**
+     * Returns the executor running asynchronous repository calls
+     * <p>
+     * Unless changed using {@link UserManager#setExecutor(Executor)}, the executor starts a virtual thread per task
+     * when the runtime supports them, or uses a cached pool of daemon threads otherwise.
+     *
+     * @return the executor running asynchronous repository calls
+     */
+    public synchronized Executor getExecutor() {
+        if (executor != null)
+            return executor;
+        if (defaultExecutor == null)
+            defaultExecutor = createDefaultExecutor();
+        return defaultExecutor;
+    }
+
+    /**
+     * Changes the executor running asynchronous repository calls such as {@link JPARepository#findByIdAsync(Object)}
+     *
+     * @param executor the executor, null to use the default one
+     * @return the modified user manager
+     */
+    public synchronized UserManager setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        try {
+            // available from Java 21, looked up reflectively to keep supporting older runtimes
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                var thread = new Thread(r, "jpa99-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Runs a piece of work asynchronously on {@link UserManager#getExecutor()}.
+     * <p>
+     * The work gets its own {@link EntityManager}, used by all the repositories it calls whatever their scope,
+     * and closed once the work is done.
+     *
+     * @param work the work to do
+     * @param <R>  the type of the result
+     * @return a future completed with the result of the work
+     */
+    public <R> CompletableFuture<R> supplyAsync(Supplier<R> work) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (!isLoggedIn())
+                throw new IllegalStateException("You need to be logged in to use the entity manager");
+            var previous = taskEntityManager.get();
+            var manager = emf.createEntityManager();
+            taskEntityManager.set(manager);
+            try {
+                return work.get();
+            } finally {
+                if (previous == null)
+                    taskEntityManager.remove();
+                else
+                    taskEntityManager.set(previous);
+                if (manager.isOpen())
+                    manager.close();
+            }
+        }, getExecutor());
+    }
+
+    /**
+     * Returns the {@link EntityManager} owned by the asynchronous task running on the current thread
+     *
+     * @return the {@link EntityManager} of the current task, null if not running inside {@link UserManager#supplyAsync(Supplier)}
+     */
+    EntityManager getTaskEntityManager() {
+        return taskEntityManager.get();
+    }
+
+    /**
+     * Returns the recorder receiving the measurements taken by JPA99
+     *
+     * @return the recorder, null if none was set
+     */
+    public MetricsRecorder getMetricsRecorder() {
+        return metricsRecorder;
+    }
+
+    /**
+     * Sets a recorder receiving the measurements taken by JPA99, in addition to the built-in {@link RepositoryMetrics}
+     *
+     * @param metricsRecorder the recorder, null to remove it
+     * @return the modified user manager
+     */
+    public UserManager setMetricsRecorder(MetricsRecorder metricsRecorder) {
+        this.metricsRecorder = metricsRecorder;
+        return this;
+    }
+
+    /**
+     * Enables the cache of the query results of {@link JPARepository#queryCached(CacheableQuery)}, shared by all the repositories.
+     * <p>
+     * Results are kept in a bounded cache, evicting the least recently used ones when full,
+     * and dropped when an entity of the queried class is written through a {@link JPARepository}.
+     * Writes made by other means, such as another application or native queries, are only seen once the results expire.
+     * Enabling the cache again drops the cached results.
+     *
+     * @param maxSize the maximum number of cached results
+     * @param ttl     how long a result stays cached, null to keep results until evicted or invalidated
+     * @return the modified user manager
+     * @throws IllegalArgumentException if the maximum size is not positive
+     */
+    public UserManager enableQueryCache(int maxSize, Duration ttl) {
+        queryCache = new QueryCache(maxSize, ttl);
+        return this;
+    }
+
+    /**
+     * Disables the cache of {@link JPARepository#queryCached(CacheableQuery)} and drops the cached results
+     *
+     * @return the modified user manager
+     */
+    public UserManager disableQueryCache() {
+        queryCache = null;
+        return this;
+    }
+
+    /**
+     * Returns the statistics of the cache of {@link JPARepository#queryCached(CacheableQuery)}
+     *
+     * @return the statistics of the cache, null if the cache is disabled
+     */
+    public CacheStatistics getQueryCacheStatistics() {
+        var current = queryCache;
+        return current == null ? null : current.getStatistics();
+    }
+
+    /**
+     * Returns the cache of {@link JPARepository#queryCached(CacheableQuery)}
+     *
+     * @return the cache, null if disabled
+     */
+    QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Drops the cached query results related to a written entity class
+     *
+     * @param entityClass the written class
+     */
+    void invalidateQueries(Class<?> entityClass) {
+        var current = queryCache;
+        if (current != null)
+            current.invalidate(entityClass);
+    }
+
+    /**
+     * Returns the measurements of a repository
+     *
+     * @param id the id of the repository
+     * @return the measurements of the repository, null if the repository was never instantiated
+     */
+    public RepositoryMetrics getRepositoryMetrics(String id) {
+        return repositoryMetrics.get(id);
+    }
+
+    /**
+     * Returns the measurements of a repository, creating and registering them with JMX if needed
+     *
+     * @param id the id of the repository
+     * @return the measurements of the repository
+     */
+    RepositoryMetrics metricsFor(String id) {
+        return repositoryMetrics.computeIfAbsent(id, key -> {
+            var metrics = new RepositoryMetrics(key);
+            registerMBean(metrics, "type=Repository,name=" + ObjectName.quote(key));
+            return metrics;
+        });
+    }
+
+    /**
+     * Returns how long a phase of the last log in took
+     *
+     * @param phase the phase
+     * @return the duration of the phase in nanoseconds, 0 if the phase did not run
+     */
+    public long getLogInPhaseNanos(LogInPhase phase) {
+        return logInPhaseNanos.get(phase.ordinal());
+    }
+
+    @Override
+    public Map<String, Long> getLogInPhases() {
+        var res = new LinkedHashMap<String, Long>();
+        for (var phase : LogInPhase.values())
+            res.put(phase.name(), getLogInPhaseNanos(phase));
+        return res;
+    }
+
+    private void recordLogInPhase(LogInPhase phase, long start) {
+        var nanos = System.nanoTime() - start;
+        logInPhaseNanos.set(phase.ordinal(), nanos);
+        var recorder = metricsRecorder;
+        if (recorder != null)
+            recorder.recordLogInPhase(phase, nanos);
+    }
+
+    /**
+     * Registers an MXBean in the platform MBean server under {@link UserManager#JMX_DOMAIN}, nothing is done if the name is taken
+     *
+     * @param bean       the bean
+     * @param properties the key properties of the name of the bean
+     */
+    private static void registerMBean(Object bean, String properties) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(JMX_DOMAIN + ":" + properties));
+        } catch (InstanceAlreadyExistsException e) {
+            // registered by a previous session
+        } catch (JMException | SecurityException e) {
+            // monitoring is not available, the measurements are still taken
+        }
+    }
+
     /**
      * Logs the user out and closes the connection with the database.
      * <p>
@@ -148,12 +756,32 @@ public class UserManager {
      */
     public void logOut() {
         if (emf != null && emf.isOpen()) {
+            for (var repository : repositories.values())
+                repository.shutdown();
             props.clear();
+            for (var manager : threadEntityManagers)
+                if (manager.isOpen())
+                    manager.close();
+            threadEntityManagers.clear();
+            threadEntityManager.remove();
+            threadReplicaEntityManager.remove();
+            threadReadOnlyEntityManager.remove();
             emf.close();
             roles.clear();
+            repositoryClasses = Map.of();
             repositories.clear();
+            streamProvider = null;
             emf = null;
         }
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+        replicas.forEach(ReplicaNode::close);
+        replicas = List.of();
+        var current = queryCache;
+        if (current != null)
+            current.clear();
     }
 
     /**
@@ -174,6 +802,38 @@ public class UserManager {
         return emf;
     }
 
+    /**
+     * Returns the JINQ stream provider shared by all the repositories
+     *
+     * @return the JINQ stream provider, null if not logged in
+     */
+    public JinqJPAStreamProvider getStreamProvider() {
+        return streamProvider;
+    }
+
+    /**
+     * Returns whether the repository queries are warmed up in a background thread when logging in
+     *
+     * @return whether the repository queries are warmed up in a background thread
+     */
+    public boolean isWarmUpInBackground() {
+        return warmUpInBackground;
+    }
+
+    /**
+     * Changes whether the repository queries are warmed up in a background thread when logging in.
+     * <p>
+     * By default the warm-up is done before {@link UserManager#logIn(String, String)} returns,
+     * see {@link JPARepository#warmUpQueries()}.
+     *
+     * @param warmUpInBackground whether the repository queries are warmed up in a background thread
+     * @return the modified user manager
+     */
+    public UserManager setWarmUpInBackground(boolean warmUpInBackground) {
+        this.warmUpInBackground = warmUpInBackground;
+        return this;
+    }
+
     /**
      * Returns the last exception to happen when logging in
      *
@@ -196,27 +856,175 @@ public class UserManager {
      * @throws IllegalStateException in case you try to log in while already logged in
      */
     public boolean logIn(String username, String password) {
+        prepareLogIn(username, password);
+        try {
+            connect(username, password);
+            var start = System.nanoTime();
+            scanRepositories();
+            recordLogInPhase(LogInPhase.REPOSITORY_SCAN, start);
+            startWarmUp();
+        } catch (Exception e) {
+            abortLogIn(e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Logs a user into the database without blocking the calling thread, see {@link UserManager#logIn(String, String)}.
+     * <p>
+     * The repositories are found while the connection pool and the {@link EntityManagerFactory} are created,
+     * on the executor of {@link UserManager#getExecutor()}.
+     * The returned future completes once the roles are acquired and the repositories are warmed up,
+     * unless {@link UserManager#isWarmUpInBackground()}, so the first query does not pay for the initialization.
+     * The duration of each phase is available from {@link UserManager#getLogInPhaseNanos(LogInPhase)}.
+     * <p>
+     * The user manager must not be used until the future completes.
+     *
+     * @param username the username, can be null if needed
+     * @param password password, can be null if needed
+     * @return a future completed with true if connected, false otherwise, see {@link UserManager#getLastException()} to understand why the connection failed.
+     * @throws IllegalStateException in case you try to log in while already logged in
+     */
+    public CompletableFuture<Boolean> logInAsync(String username, String password) {
+        // the caller is only known on its own thread
+        if (packageList == null)
+            packageList = new String[]{StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE).getCallerClass().getPackageName()};
+        prepareLogIn(username, password);
+        var executor = getExecutor();
+        var scan = CompletableFuture.supplyAsync(() -> {
+            var start = System.nanoTime();
+            var classes = Map.copyOf(findRepositoryClasses());
+            recordLogInPhase(LogInPhase.REPOSITORY_SCAN, start);
+            return classes;
+        }, executor);
+        var connection = CompletableFuture.runAsync(() -> {
+            try {
+                connect(username, password);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+        return connection.thenCombine(scan, (connected, classes) -> {
+            repositoryClasses = classes;
+            startWarmUp();
+            return true;
+        }).exceptionally(e -> {
+            abortLogIn(e instanceof CompletionException && e.getCause() instanceof Exception ? (Exception) e.getCause()
+                    : e instanceof Exception ? (Exception) e : new CompletionException(e));
+            return false;
+        });
+    }
+
+    /**
+     * Fills the connection properties and resets the measurements of the log in
+     *
+     * @param username the username
+     * @param password the password
+     * @throws IllegalStateException if already logged in
+     */
+    private void prepareLogIn(String username, String password) {
         if (isLoggedIn())
             throw new IllegalStateException("You need to be logout before logging in again");
         props.put(JPA_PROPERTY_URL, url);
         props.put(JPA_PROPERTY_DRIVER, dbImplAdapter.getDriver());
         props.setProperty(JPA_PROPERTY_USERNAME, username);
         props.setProperty(JPA_PROPERTY_PASSWORD, password);
-        boolean res = false;
+        props.setProperty(HIBERNATE_PROPERTY_BATCH_SIZE, String.valueOf(batchSize));
+        props.setProperty(HIBERNATE_PROPERTY_ORDER_INSERTS, "true");
+        props.setProperty(HIBERNATE_PROPERTY_ORDER_UPDATES, "true");
+        props.setProperty(ECLIPSELINK_PROPERTY_BATCH_WRITING, "JDBC");
+        props.setProperty(ECLIPSELINK_PROPERTY_BATCH_SIZE, String.valueOf(batchSize));
+        registerMBean(this, "type=UserManager");
+        for (int i = 0; i < logInPhaseNanos.length(); i++)
+            logInPhaseNanos.set(i, 0);
+    }
+
+    /**
+     * Creates the connection pools and the {@link EntityManagerFactory}, then acquires the roles of the user
+     *
+     * @param username the username
+     * @param password the password
+     * @throws SQLException if a connection pool cannot be created
+     */
+    private void connect(String username, String password) throws SQLException {
+        var start = System.nanoTime();
+        if (connectionPoolConfig != null) {
+            connectionPool = new ConnectionPool(url, username, password, dbImplAdapter, connectionPoolConfig);
+            props.put(JPA_PROPERTY_NON_JTA_DATA_SOURCE, connectionPool);
+            recordLogInPhase(LogInPhase.CONNECTION_POOL, start);
+        }
+        start = System.nanoTime();
+        emf = Persistence.createEntityManagerFactory(puName, props);
+        streamProvider = new JinqJPAStreamProvider(emf);
+        connectReplicas(username, password);
+        recordLogInPhase(LogInPhase.ENTITY_MANAGER_FACTORY, start);
+        start = System.nanoTime();
+        roles.clear();
+        for (var row : queryNative(DBAdapter.STATEMENT_ACQUIRE_USER_ROLES))
+            roles.add(String.valueOf(row[0]));
+        lastException = null;
+        recordLogInPhase(LogInPhase.ROLES, start);
+    }
+
+    private void startWarmUp() {
+        if (warmUpInBackground) {
+            var thread = new Thread(this::warmUpRepositories, "jpa99-warm-up");
+            thread.setDaemon(true);
+            thread.start();
+        } else
+            warmUpRepositories();
+    }
+
+    /**
+     * Records the failure of a log in and releases the connections opened so far
+     *
+     * @param e the reason of the failure
+     */
+    private void abortLogIn(Exception e) {
+        lastException = e;
+        if (!isLoggedIn()) {
+            if (connectionPool != null) {
+                connectionPool.close();
+                connectionPool = null;
+            }
+            replicas.forEach(ReplicaNode::close);
+            replicas = List.of();
+        }
+    }
+
+    /**
+     * Creates an {@link EntityManagerFactory} for each read replica of the database adapter
+     *
+     * @param username the username
+     * @param password the password
+     * @throws SQLException if the connection pool of a replica cannot be created
+     */
+    private void connectReplicas(String username, String password) throws SQLException {
+        var nodes = new ArrayList<ReplicaNode>();
         try {
-            emf = Persistence.createEntityManagerFactory(puName, props);
-            EntityManager em = emf.createEntityManager();
-            Query q = em.createNativeQuery(this.dbImplAdapter.getAcquireUserRoles());
-            roles.clear();
-            roles.addAll(q.getResultList());
-            lastException = null;
-            em.close();
-            scanRepositories();
-        } catch (Exception e) {
-            lastException = e;
-            return false;
+            for (var replicaURL : dbImplAdapter.getReadReplicaURLs()) {
+                var nodeProps = new Properties();
+                nodeProps.putAll(props);
+                nodeProps.put(JPA_PROPERTY_URL, replicaURL);
+                ConnectionPool pool = null;
+                if (connectionPoolConfig != null) {
+                    pool = new ConnectionPool(replicaURL, username, password, dbImplAdapter, connectionPoolConfig);
+                    nodeProps.put(JPA_PROPERTY_NON_JTA_DATA_SOURCE, pool);
+                }
+                try {
+                    nodes.add(new ReplicaNode(replicaURL, Persistence.createEntityManagerFactory(puName, nodeProps), pool));
+                } catch (RuntimeException e) {
+                    if (pool != null)
+                        pool.close();
+                    throw e;
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            nodes.forEach(ReplicaNode::close);
+            throw e;
         }
-        return true;
+        replicas = List.copyOf(nodes);
     }
 
     /**
@@ -228,6 +1036,154 @@ public class UserManager {
         return roles;
     }
 
+    /**
+     * Changes the password of a user using {@link DBAdapter#STATEMENT_CHANGE_PASSWORD}, the values are never formatted into the SQL.
+     * <p>
+     * When changing the password of the logged user, the new password is used to open the next connections,
+     * except those of the connection pool which keeps the password of the log in.
+     *
+     * @param username the user
+     * @param password the new password
+     * @throws IllegalStateException    if not logged in
+     * @throws IllegalArgumentException if the username or the password is null, or the adapter does not declare the statement
+     * @throws PersistenceException     if the password cannot be changed
+     */
+    public void changePassword(String username, String password) {
+        if (username == null || password == null)
+            throw new IllegalArgumentException("The username and the password cannot be null");
+        executeNative(DBAdapter.STATEMENT_CHANGE_PASSWORD, username, password);
+        if (username.equals(props.getProperty(JPA_PROPERTY_USERNAME)))
+            props.setProperty(JPA_PROPERTY_PASSWORD, password);
+    }
+
+    /**
+     * Runs a named native query of the database adapter, see {@link DBAdapter#getNativeStatement(String)}.
+     * <p>
+     * With a connection pool the query is prepared once per connection and reused, the parameters are bound to it.
+     *
+     * @param name       the name of the query
+     * @param parameters the values of the parameters of the query
+     * @return the rows returned by the query
+     * @throws IllegalStateException    if not logged in
+     * @throws IllegalArgumentException if the adapter does not declare the query
+     * @throws PersistenceException     if the query fails
+     */
+    public List<Object[]> queryNative(String name, Object... parameters) {
+        var statement = nativeStatement(name);
+        return runNative(statement, (connection, prepared) -> {
+            bind(prepared, parameters);
+            if (statement.isGenerating())
+                return runGenerated(connection, prepared, true);
+            try (var resultSet = prepared.executeQuery()) {
+                return readRows(resultSet);
+            }
+        });
+    }
+
+    /**
+     * Executes a named native statement of the database adapter, see {@link DBAdapter#getNativeStatement(String)}.
+     * <p>
+     * With a connection pool the statement is prepared once per connection and reused, the parameters are bound to it.
+     *
+     * @param name       the name of the statement
+     * @param parameters the values of the parameters of the statement
+     * @return the number of modified rows, 0 for statements returning nothing
+     * @throws IllegalStateException    if not logged in
+     * @throws IllegalArgumentException if the adapter does not declare the statement
+     * @throws PersistenceException     if the statement fails
+     */
+    public int executeNative(String name, Object... parameters) {
+        var statement = nativeStatement(name);
+        return runNative(statement, (connection, prepared) -> {
+            bind(prepared, parameters);
+            if (statement.isGenerating()) {
+                runGenerated(connection, prepared, false);
+                return 0;
+            }
+            return Math.max(prepared.executeUpdate(), 0);
+        });
+    }
+
+    private NativeStatement nativeStatement(String name) {
+        var statement = dbImplAdapter.getNativeStatement(name);
+        if (statement == null)
+            throw new IllegalArgumentException(String.format("The adapter %s has no statement named %s", dbImplAdapter.getAdapterName(), name));
+        return statement;
+    }
+
+    /**
+     * Runs a native statement on a connection of {@link UserManager#openConnection()}.
+     * <p>
+     * With a connection pool the statement is prepared once per physical connection and kept by the pool, see {@link ConnectionPool#prepareCached(Connection, String)},
+     * otherwise it is prepared for this call and closed with the connection.
+     *
+     * @param statement the statement
+     * @param work      runs the prepared statement
+     * @param <R>       the type of the result
+     * @return the result of the work
+     * @throws PersistenceException if the statement fails
+     */
+    private <R> R runNative(NativeStatement statement, NativeWork<R> work) {
+        try (var connection = openConnection()) {
+            var pool = connectionPool;
+            var cached = pool != null ? pool.prepareCached(connection, statement.getSql()) : null;
+            if (cached != null)
+                return work.run(connection, cached);
+            try (var prepared = connection.prepareStatement(statement.getSql())) {
+                return work.run(connection, prepared);
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not run the native statement " + statement.getName(), e);
+        }
+    }
+
+    /**
+     * Work done with a prepared native statement
+     *
+     * @param <R> the type of the result
+     */
+    private interface NativeWork<R> {
+        R run(Connection connection, PreparedStatement prepared) throws SQLException;
+    }
+
+    private static void bind(PreparedStatement statement, Object[] parameters) throws SQLException {
+        for (int i = 0; parameters != null && i < parameters.length; i++)
+            statement.setObject(i + 1, parameters[i]);
+    }
+
+    private static List<Object[]> readRows(ResultSet resultSet) throws SQLException {
+        var res = new ArrayList<Object[]>();
+        var columns = resultSet.getMetaData().getColumnCount();
+        while (resultSet.next()) {
+            var row = new Object[columns];
+            for (int i = 0; i < columns; i++)
+                row[i] = resultSet.getObject(i + 1);
+            res.add(row);
+        }
+        return res;
+    }
+
+    /**
+     * Runs a generating statement and executes the statement it generated
+     */
+    private static List<Object[]> runGenerated(Connection connection, PreparedStatement generating, boolean query) throws SQLException {
+        String sql;
+        try (var resultSet = generating.executeQuery()) {
+            if (!resultSet.next())
+                throw new SQLException("The generating statement returned no statement");
+            sql = resultSet.getString(1);
+        }
+        try (var generated = connection.createStatement()) {
+            if (!query) {
+                generated.execute(sql);
+                return List.of();
+            }
+            try (var resultSet = generated.executeQuery(sql)) {
+                return readRows(resultSet);
+            }
+        }
+    }
+
     private String[] getCallingMethod() {
         StackWalker walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
         var caller = walker.getCallerClass();
@@ -237,27 +1193,219 @@ public class UserManager {
     private void scanRepositories() throws IllegalStateException {
         if (packageList == null)
             packageList = getCallingMethod();
-        try (var res = new ClassGraph().enableAnnotationInfo().acceptPackages(packageList).scan()) {
+        repositoryClasses = Map.copyOf(findRepositoryClasses());
+    }
+
+    /**
+     * Instantiates the repositories annotated with <code>@Repository(warmUp = true)</code> and translates their common queries
+     */
+    private void warmUpRepositories() {
+        var start = System.nanoTime();
+        for (var entry : repositoryClasses.entrySet()) {
+            if (!entry.getValue().getAnnotation(Repository.class).warmUp())
+                continue;
+            try {
+                var repository = getRepository(entry.getKey());
+                if (repository != null)
+                    repository.warmUp();
+            } catch (RuntimeException e) {
+                // a failed warm-up is not fatal, the queries are translated again on first use
+            }
+        }
+        recordLogInPhase(LogInPhase.WARM_UP, start);
+    }
+
+    /**
+     * Finds the repository classes in {@link UserManager#packageList}.
+     * <p>
+     * The index generated by {@link RepositoryIndexProcessor} is used for the packages it lists repositories in,
+     * the other packages, and those whose entries point to missing or changed classes, are scanned using ClassGraph.
+     *
+     * @return the repository classes mapped by their ids
+     */
+    private Map<String, Class<?>> findRepositoryClasses() {
+        var found = new HashMap<String, Class<?>>();
+        var indexed = loadRepositoryIndex();
+        var scanned = new ArrayList<String>();
+        for (var pkg : packageList) {
+            var classes = indexed.get(pkg);
+            if (classes == null)
+                scanned.add(pkg);
+            else
+                classes.forEach((id, classz) -> addRepositoryClass(found, id, classz));
+        }
+        if (scanned.isEmpty())
+            return found;
+        try (var res = new ClassGraph().enableAnnotationInfo().acceptPackages(scanned.toArray(String[]::new)).scan()) {
             var cil = res.getClassesWithAnnotation(Repository.class.getCanonicalName());
             for (var cInfo : cil) {
                 var dbCi = (Repository) cInfo.getAnnotationInfo(Repository.class.getCanonicalName()).loadClassAndInstantiate();
-                if (repositories.containsKey(dbCi.value()))
-                    throw new RuntimeException(String.format("Database controller %s already exists", dbCi.value()));
-                var classz = cInfo.loadClass();
-                repositories.put(dbCi.value(), (JPARepository) classz.getDeclaredConstructor().newInstance());
+                addRepositoryClass(found, dbCi.value(), cInfo.loadClass());
             }
-        } catch (InstantiationException | InvocationTargetException | IllegalAccessException | NoSuchMethodException e) {
-            e.printStackTrace();
         }
+        return found;
+    }
+
+    private static void addRepositoryClass(Map<String, Class<?>> found, String id, Class<?> classz) {
+        var existing = found.put(id, classz);
+        if (existing != null && existing != classz)
+            throw new RuntimeException(String.format("Database controller %s already exists", id));
+    }
+
+    /**
+     * Loads the repository classes listed by the indexes generated by {@link RepositoryIndexProcessor}, grouped by the package of {@link UserManager#packageList} they are in.
+     * <p>
+     * A package is left out when an entry in it names a class which cannot be loaded or is no longer annotated with the same id,
+     * as the index was then written by an older compilation.
+     *
+     * @return the repository classes mapped by their ids, mapped by the packages listed by an up-to-date index
+     */
+    private Map<String, Map<String, Class<?>>> loadRepositoryIndex() {
+        var found = new HashMap<String, Map<String, Class<?>>>();
+        var stale = new HashSet<String>();
+        var loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null)
+            loader = UserManager.class.getClassLoader();
+        try {
+            var indexes = loader.getResources(RepositoryIndexProcessor.INDEX_LOCATION);
+            while (indexes.hasMoreElements()) {
+                var index = new Properties();
+                try (var in = indexes.nextElement().openStream()) {
+                    index.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+                }
+                for (var id : index.stringPropertyNames()) {
+                    var className = index.getProperty(id);
+                    var packages = Arrays.stream(packageList).filter(pkg -> className.startsWith(pkg + ".")).toArray(String[]::new);
+                    if (packages.length == 0)
+                        continue;
+                    Class<?> classz;
+                    try {
+                        classz = Class.forName(className, false, loader);
+                    } catch (ClassNotFoundException | LinkageError e) {
+                        classz = null;
+                    }
+                    var annotation = classz == null ? null : classz.getAnnotation(Repository.class);
+                    for (var pkg : packages) {
+                        if (annotation == null || !annotation.value().equals(id))
+                            stale.add(pkg);
+                        else
+                            addRepositoryClass(found.computeIfAbsent(pkg, key -> new HashMap<>()), id, classz);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("The repository index could not be loaded", e);
+        }
+        found.keySet().removeAll(stale);
+        return found;
     }
 
     /**
      * Returns an open repository
+     * <p>
+     * Repositories are instantiated on first access, this method is thread-safe.
      *
      * @param name the unique name of the repository
-     * @return the repository
+     * @return the repository, null if no repository has that name
+     * @throws IllegalStateException if the repository cannot be instantiated
      */
     public JPARepository getRepository(String name) {
-        return repositories.get(name);
+        var repository = repositories.get(name);
+        if (repository != null)
+            return repository;
+        var classz = repositoryClasses.get(name);
+        if (classz == null)
+            return null;
+        synchronized (repositories) {
+            repository = repositories.get(name);
+            if (repository == null) {
+                try {
+                    repository = (JPARepository) classz.getDeclaredConstructor().newInstance();
+                } catch (InstantiationException | InvocationTargetException | IllegalAccessException | NoSuchMethodException e) {
+                    throw new IllegalStateException(String.format("Could not instantiate the repository %s", name), e);
+                }
+                repositories.put(name, repository);
+            }
+        }
+        return repository;
+    }
+
+    /**
+     * Returns an open repository using its class
+     * <p>
+     * Similar to {@link UserManager#getRepository(String)} without having to cast the result.
+     *
+     * @param repositoryClass the class of the repository
+     * @param <R>             the type of the repository
+     * @return the repository
+     * @throws IllegalArgumentException if the class is not a repository found when logging in
+     */
+    public <R extends JPARepository<?, ?>> R getRepository(Class<R> repositoryClass) {
+        var annotation = repositoryClass.getAnnotation(Repository.class);
+        if (annotation == null)
+            throw new IllegalArgumentException("A JPA repository must be annotated by Repository annotation");
+        if (repositoryClasses.get(annotation.value()) != repositoryClass)
+            throw new IllegalArgumentException(String.format("The repository %s was not found in the scanned packages", repositoryClass.getName()));
+        return repositoryClass.cast(getRepository(annotation.value()));
+    }
+
+    /**
+     * Exports the entities of repositories into a directory, one snapshot file named after the id of each repository,
+     * see {@link JPARepository#exportSnapshot(Path)}
+     *
+     * @param directory the directory of the snapshots, created if needed
+     * @param ids       the ids of the repositories, all the repositories if none are given
+     * @return the number of exported rows mapped by the ids of the repositories
+     * @throws IOException              if a snapshot cannot be written
+     * @throws IllegalArgumentException if an id is not the id of a repository
+     */
+    public Map<String, Long> exportSnapshots(Path directory, String... ids) throws IOException {
+        Files.createDirectories(directory);
+        var res = new LinkedHashMap<String, Long>();
+        for (var id : snapshotIds(ids))
+            res.put(id, snapshotRepository(id).exportSnapshot(snapshotFile(directory, id)));
+        return res;
+    }
+
+    /**
+     * Imports the snapshots of repositories written by {@link UserManager#exportSnapshots(Path, String...)}, see {@link JPARepository#importSnapshot(Path)}.
+     * <p>
+     * The snapshots are imported in the order of the ids, list the repositories referenced by foreign keys first.
+     * Without ids, every repository having a snapshot in the directory is imported, in the order of their ids.
+     *
+     * @param directory the directory of the snapshots
+     * @param ids       the ids of the repositories, all the repositories having a snapshot if none are given
+     * @return the number of imported rows mapped by the ids of the repositories
+     * @throws IOException              if a snapshot cannot be read
+     * @throws IllegalArgumentException if an id is not the id of a repository, or a snapshot does not match its repository
+     */
+    public Map<String, Long> importSnapshots(Path directory, String... ids) throws IOException {
+        var res = new LinkedHashMap<String, Long>();
+        for (var id : snapshotIds(ids)) {
+            var file = snapshotFile(directory, id);
+            if (ids.length == 0 && !Files.exists(file))
+                continue;
+            res.put(id, snapshotRepository(id).importSnapshot(file));
+        }
+        return res;
+    }
+
+    private List<String> snapshotIds(String[] ids) {
+        if (ids.length > 0)
+            return List.of(ids);
+        var all = new ArrayList<>(repositoryClasses.keySet());
+        Collections.sort(all);
+        return all;
+    }
+
+    private JPARepository<?, ?> snapshotRepository(String id) {
+        var repository = getRepository(id);
+        if (repository == null)
+            throw new IllegalArgumentException("There is no repository with the id " + id);
+        return repository;
+    }
+
+    private static Path snapshotFile(Path directory, String id) {
+        return directory.resolve(id + ".snapshot");
     }
 }
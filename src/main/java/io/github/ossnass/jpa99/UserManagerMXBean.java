@@ -0,0 +1,23 @@
+package io.github.ossnass.jpa99;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link UserManager}, registered under <code>io.github.ossnass.jpa99:type=UserManager</code>
+ */
+public interface UserManagerMXBean {
+
+    /**
+     * Returns whether the user is logged in
+     *
+     * @return whether the user is logged in
+     */
+    boolean isLoggedIn();
+
+    /**
+     * Returns how long each phase of the last log in took
+     *
+     * @return the duration of each phase in nanoseconds mapped by the name of the phase
+     */
+    Map<String, Long> getLogInPhases();
+}
@@ -0,0 +1,249 @@
+package io.github.ossnass.jpa99;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A bounded queue of entities waiting to be written by a background thread, see {@link JPARepository#enableWriteBehind(WriteBehindConfig, BiConsumer)}
+ * <p>
+ * Entities with the same id are coalesced, only the last saved state is written.
+ * A batch is written when {@link WriteBehindConfig#getBatchSize()} entities are waiting or every {@link WriteBehindConfig#getFlushInterval()}.
+ *
+ * @param <E> the type of the entities
+ */
+class WriteBehindBuffer<E> {
+    private final WriteBehindConfig config;
+    private final Function<E, Object> idOf;
+    private final Consumer<List<E>> writer;
+    private final BiConsumer<List<E>, RuntimeException> onError;
+    private final ScheduledExecutorService scheduler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    /**
+     * Serializes the writes, so a state of an entity is never overwritten by an older one
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+    /**
+     * The waiting entities mapped by their id, entities without an id are mapped by a key of their own
+     */
+    private final LinkedHashMap<Object, E> pending = new LinkedHashMap<>();
+    /**
+     * The entities of the batch being written, kept visible to {@link WriteBehindBuffer#pending(Object)} until the batch is committed
+     */
+    private final LinkedHashMap<Object, E> inFlight = new LinkedHashMap<>();
+    private boolean closed;
+    private boolean flushScheduled;
+
+    /**
+     * Creates the buffer and starts its background thread
+     *
+     * @param config  the configuration
+     * @param idOf    returns the id of an entity, null for new entities
+     * @param writer  writes a batch of entities in a single transaction
+     * @param onError called with the batch when writing it fails, the entities of the batch are dropped
+     */
+    WriteBehindBuffer(WriteBehindConfig config, Function<E, Object> idOf, Consumer<List<E>> writer, BiConsumer<List<E>, RuntimeException> onError) {
+        this.config = config;
+        this.idOf = idOf;
+        this.writer = writer;
+        this.onError = onError;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "jpa99-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var interval = config.getFlushInterval().toNanos();
+        scheduler.scheduleWithFixedDelay(this::flushAll, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Queues an entity, waiting for room if the queue is full
+     *
+     * @param entity the entity
+     * @throws IllegalStateException if the buffer is closed, or the queue stays full for {@link WriteBehindConfig#getOfferTimeout()}
+     */
+    void offer(E entity) {
+        var id = idOf.apply(entity);
+        var key = id == null ? new Object() : id;
+        lock.lock();
+        try {
+            var remaining = config.getOfferTimeout().toNanos();
+            while (!closed && pending.size() >= config.getMaxPending() && !pending.containsKey(key)) {
+                if (remaining <= 0)
+                    throw new IllegalStateException("The write-behind queue is full");
+                remaining = notFull.awaitNanos(remaining);
+            }
+            if (closed)
+                throw new IllegalStateException("The write-behind buffer is closed");
+            pending.put(key, entity);
+            if (pending.size() >= config.getBatchSize() && !flushScheduled) {
+                flushScheduled = true;
+                scheduler.execute(this::flushAll);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for room in the write-behind queue", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the waiting state of an entity
+     *
+     * @param id the id of the entity
+     * @return the waiting entity, null if there is none
+     */
+    E pending(Object id) {
+        lock.lock();
+        try {
+            var entity = pending.get(id);
+            return entity != null ? entity : inFlight.get(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of waiting entities
+     *
+     * @return the number of waiting entities
+     */
+    int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the waiting entities matching a condition, so a deleted entity is not written back afterwards
+     * <p>
+     * If a matching entity is being written, waits for its batch to be committed before returning.
+     *
+     * @param matches the condition of the entities to drop
+     */
+    void discard(Predicate<E> matches) {
+        boolean writing;
+        lock.lock();
+        try {
+            if (pending.values().removeIf(matches))
+                notFull.signalAll();
+            writing = inFlight.values().stream().anyMatch(matches);
+        } finally {
+            lock.unlock();
+        }
+        if (writing)
+            awaitFlush();
+    }
+
+    /**
+     * Drops all the waiting entities, waiting for the batch being written if any
+     */
+    void clear() {
+        boolean writing;
+        lock.lock();
+        try {
+            pending.clear();
+            notFull.signalAll();
+            writing = !inFlight.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+        if (writing)
+            awaitFlush();
+    }
+
+    private void awaitFlush() {
+        flushLock.lock();
+        flushLock.unlock();
+    }
+
+    /**
+     * Writes all the waiting entities in batches
+     */
+    void flushAll() {
+        flushLock.lock();
+        try {
+            List<E> batch;
+            while (!(batch = takeBatch()).isEmpty()) {
+                try {
+                    writer.accept(batch);
+                } catch (RuntimeException e) {
+                    try {
+                        onError.accept(batch, e);
+                    } catch (RuntimeException ignored) {
+                        // the error handler must not stop the writes of the next batches
+                    }
+                } finally {
+                    release();
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private List<E> takeBatch() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            var batch = new ArrayList<E>(Math.min(pending.size(), config.getBatchSize()));
+            var iterator = pending.entrySet().iterator();
+            while (iterator.hasNext() && batch.size() < config.getBatchSize()) {
+                var entry = iterator.next();
+                batch.add(entry.getValue());
+                inFlight.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+            if (!batch.isEmpty())
+                notFull.signalAll();
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inFlight.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rejects new entities, writes the waiting ones and stops the background thread
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(config.getFlushInterval().toMillis() + 30_000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+}
@@ -0,0 +1,106 @@
+package io.github.ossnass.jpa99;
+
+import java.time.Duration;
+
+/**
+ * The configuration of the write-behind mode of a repository, see {@link JPARepository#enableWriteBehind(WriteBehindConfig, java.util.function.BiConsumer)}
+ */
+public class WriteBehindConfig {
+
+    private int maxPending = 10_000;
+    private int batchSize = 500;
+    private Duration flushInterval = Duration.ofSeconds(1);
+    private Duration offerTimeout = Duration.ofSeconds(30);
+
+    /**
+     * Returns the maximum number of entities waiting to be written
+     *
+     * @return the maximum number of entities waiting to be written
+     */
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * Changes the maximum number of entities waiting to be written, saving more entities blocks until a batch is written
+     *
+     * @param maxPending the maximum number of entities waiting to be written
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public WriteBehindConfig setMaxPending(int maxPending) {
+        if (maxPending <= 0)
+            throw new IllegalArgumentException("The maximum number of pending entities must be positive");
+        this.maxPending = maxPending;
+        return this;
+    }
+
+    /**
+     * Returns the number of entities written per transaction
+     *
+     * @return the number of entities written per transaction
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Changes the number of entities written per transaction, a batch is written as soon as that many entities are waiting
+     *
+     * @param batchSize the number of entities written per transaction
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public WriteBehindConfig setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("The batch size must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Returns how long an entity waits at most before being written
+     *
+     * @return how long an entity waits at most before being written
+     */
+    public Duration getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Changes how long an entity waits at most before being written, even if the batch is not full
+     *
+     * @param flushInterval how long an entity waits at most before being written
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the interval is null or not positive
+     */
+    public WriteBehindConfig setFlushInterval(Duration flushInterval) {
+        if (flushInterval == null || flushInterval.isNegative() || flushInterval.isZero())
+            throw new IllegalArgumentException("The flush interval must be positive");
+        this.flushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * Returns how long saving an entity waits for room when the queue is full
+     *
+     * @return how long saving an entity waits for room when the queue is full
+     */
+    public Duration getOfferTimeout() {
+        return offerTimeout;
+    }
+
+    /**
+     * Changes how long saving an entity waits for room when the queue is full before failing
+     *
+     * @param offerTimeout how long saving an entity waits for room when the queue is full
+     * @return the modified configuration
+     * @throws IllegalArgumentException if the timeout is null or negative
+     */
+    public WriteBehindConfig setOfferTimeout(Duration offerTimeout) {
+        if (offerTimeout == null || offerTimeout.isNegative())
+            throw new IllegalArgumentException("The offer timeout cannot be negative");
+        this.offerTimeout = offerTimeout;
+        return this;
+    }
+}
@@ -3,5 +3,9 @@ module jpa99 {
     requires transitive org.jinq.api;
     requires transitive org.jinq.jpa;
     requires io.github.classgraph;
+    requires java.sql;
+    requires java.management;
+    requires static java.compiler;
     exports io.github.ossnass.jpa99;
+    provides javax.annotation.processing.Processor with io.github.ossnass.jpa99.RepositoryIndexProcessor;
 }
\ No newline at end of file
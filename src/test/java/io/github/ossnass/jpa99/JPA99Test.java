@@ -1,14 +1,44 @@
 package io.github.ossnass.jpa99;
 
 import com.github.javafaker.Faker;
+import org.hibernate.SessionFactory;
 import org.junit.jupiter.api.*;
 
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -104,4 +134,924 @@ public class JPA99Test {
         UserManager.getUserManager().logOut();
         assertThat(UserManager.getUserManager().isLoggedIn()).isFalse();
     }
+
+    @Test
+    @Order(7)
+    @DisplayName("Testing entity manager scopes")
+    public void ScopeTest() throws InterruptedException {
+        var threads = 4;
+        var perThread = 10;
+        try {
+            for (var scope : List.of(EntityManagerScope.THREAD, EntityManagerScope.OPERATION)) {
+                DBAdapter adapter = new H2Adapter();
+                adapter.getExtraProperties().put("Mode", "memory");
+                assertThat(UserManager.getUserManager().setDatabaseAdapter(adapter)
+                        .setEntityManagerScope(scope)
+                        .setPersistenceUnitName("testPU")
+                        // H2 1.4 may answer a repeated query from the cache of a pooled session after another session committed
+                        .setDatabaseURL("", 0, "scopedb_" + scope.name().toLowerCase(Locale.ROOT) + ";QUERY_CACHE_SIZE=0").logIn("", "")).isTrue();
+                repo = UserManager.getUserManager().getRepository(PersonRepository.class);
+                assertThat(repo.em).isNull();
+                var managers = ConcurrentHashMap.<EntityManager>newKeySet();
+                var errors = new ConcurrentLinkedQueue<Throwable>();
+                var workers = new ArrayList<Thread>();
+                for (int t = 0; t < threads; t++) {
+                    var prefix = scope + " " + t + " ";
+                    workers.add(new Thread(() -> {
+                        try {
+                            var manager = repo.getEntityManager();
+                            for (int i = 0; i < perThread; i++) {
+                                var saved = repo.saveAndFlush(new Person().setName(prefix + i));
+                                assertThat(repo.findById(saved.getId()).map(Person::getName)).contains(prefix + i);
+                                saved.setName(prefix + i + " updated");
+                                repo.saveAndFlush(saved);
+                            }
+                            var name = prefix + 0 + " updated";
+                            assertThat(repo.createStream().where(person -> person.getName().equals(name)).count()).isEqualTo(1);
+                            assertThat(repo.getEntityManager()).isSameAs(manager);
+                            managers.add(manager);
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        }
+                    }, "scope-test-" + t));
+                }
+                workers.forEach(Thread::start);
+                for (var worker : workers)
+                    worker.join();
+                assertThat(errors).isEmpty();
+                assertThat(managers).hasSize(threads).allMatch(EntityManager::isOpen);
+                assertThat(repo.createStream().count()).isEqualTo(threads * perThread);
+                assertThat(repo.findAllColumns("name")).extracting(row -> (String) row[0]).allMatch(name -> name.endsWith(" updated"));
+                UserManager.getUserManager().logOut();
+                assertThat(managers).noneMatch(EntityManager::isOpen);
+            }
+        } finally {
+            UserManager.getUserManager().setEntityManagerScope(EntityManagerScope.SHARED);
+        }
+    }
+
+    @Test
+    @Order(8)
+    @DisplayName("Testing finds and deletes by ids")
+    public void ByIdsTest() {
+        repo = logIn("idsdb");
+        repo.saveAndFlushAll(newPeople(8));
+        assertThat(repo.findAllById(List.of(1, 4))).extracting(Person::getId).containsExactly(1, 4);
+        assertThat(repo.findAllById(List.of(4, 1))).extracting(Person::getId).containsExactly(4, 1);
+        var deleted = repo.findById(6).orElseThrow();
+        var kept = repo.findById(7).orElseThrow();
+        repo.deleteAllById(List.of(2, 4, 6));
+        assertThat(repo.findAllById(List.of(2, 4, 6))).isEmpty();
+        assertThat(repo.getEntityManager().contains(deleted)).isFalse();
+        assertThat(repo.getEntityManager().contains(kept)).isTrue();
+        // more ids than bind parameters per query, deleted in two chunks
+        var maxParameters = UserManager.getUserManager().getDatabaseAdapter().getMaxQueryParameters();
+        var count = maxParameters + 1000;
+        assertThat(repo.bulkInsert(IntStream.range(0, count).mapToObj(i -> new Person().setName("bulk " + i)))).isEqualTo(count);
+        var ids = repo.findAllColumns("id").stream().map(row -> (Integer) row[0]).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        repo.deleteAllById(ids.subList(1, ids.size()));
+        assertThat(repo.findAllColumns("id")).extracting(row -> row[0]).containsExactly(ids.get(0));
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(9)
+    @DisplayName("Testing batched saves")
+    public void BatchSaveTest() {
+        repo = logIn("batchdb");
+        var first = repo.saveAndFlush(new Person().setName(faker.name().fullName()));
+        var persons = newPeople(7);
+        var given = List.copyOf(persons);
+        repo.setBatchSize(3);
+        var newPersons = repo.saveAndFlushAll(persons);
+        repo.setBatchSize(0);
+        for (int i = 0; i < newPersons.size(); i++) {
+            var aperson = newPersons.get(i);
+            assertThat(aperson).isSameAs(given.get(i));
+            assertThat(aperson.getId()).isNotNull();
+            // written in batches by an entity manager of their own
+            assertThat(repo.getEntityManager().contains(aperson)).isFalse();
+        }
+        assertThat(repo.getEntityManager().contains(first)).isTrue();
+        var unrelated = repo.findById(8).orElseThrow();
+        var loaded = repo.findById(7).orElseThrow();
+        loaded.setName("batched");
+        var unknown = new Person().setId(6).setName("merged");
+        var fresh = new Person().setName("persisted");
+        repo.setBatchSize(1);
+        var batched = repo.saveAndFlushAll(new ArrayList<>(List.of(loaded, unknown, fresh)));
+        repo.setBatchSize(0);
+        assertThat(batched.get(0)).isSameAs(loaded);
+        assertThat(batched.get(1)).isNotSameAs(unknown);
+        assertThat(batched.get(2)).isSameAs(fresh);
+        assertThat(fresh.getId()).isNotNull();
+        assertThat(repo.getEntityManager().contains(loaded)).isFalse();
+        assertThat(repo.getEntityManager().contains(unrelated)).isTrue();
+        assertThat(repo.findAllColumns("name")).extracting(row -> row[0]).contains("batched", "merged", "persisted");
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(10)
+    @DisplayName("Testing cursor reads")
+    public void StreamTest() {
+        repo = logIn("streamdb");
+        repo.saveAndFlushAll(newPeople(8));
+        try (var all = repo.streamAll()) {
+            assertThat(all.count()).isEqualTo(8);
+        }
+        var batches = new ArrayList<Integer>();
+        repo.setFetchSize(3);
+        repo.forEachBatch(batch -> batches.add(batch.size()));
+        repo.setFetchSize(0);
+        assertThat(batches).containsExactly(3, 3, 2);
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(11)
+    @DisplayName("Testing keyset pagination")
+    public void PageTest() {
+        repo = logIn("pagedb");
+        repo.saveAndFlushAll(newPeople(8));
+        var pageSizes = new ArrayList<Integer>();
+        var ids = new ArrayList<Integer>();
+        String token = null;
+        do {
+            var page = repo.findPage(3, token);
+            pageSizes.add(page.getContent().size());
+            page.getContent().forEach(p -> ids.add(p.getId()));
+            token = page.getNextToken();
+        } while (token != null);
+        assertThat(pageSizes).containsExactly(3, 3, 2);
+        assertThat(ids).isSorted().doesNotHaveDuplicates();
+        var firstByName = repo.findPage("name", 4, null);
+        assertThat(firstByName.hasNext()).isTrue();
+        assertThat(repo.findPage("name", 4, firstByName.getNextToken()).getContent()).hasSize(4);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repo.findPage(null, 4, null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repo.findPage("name from Person e where 1 = 1 or e.name", 4, null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repo.findPage(4, firstByName.getNextToken()));
+        var tampered = Base64.getUrlEncoder().encodeToString("not a token".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repo.findPage("name", 4, tampered));
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(12)
+    @DisplayName("Testing the connection pool")
+    public void ConnectionPoolTest() throws SQLException {
+        DBAdapter adapter = new H2Adapter();
+        adapter.getExtraProperties().put("Mode", "memory");
+        try {
+            assertThat(UserManager.getUserManager().setDatabaseAdapter(adapter)
+                    .setConnectionPoolConfig(new ConnectionPoolConfig().setMinSize(1).setMaxSize(4))
+                    .setPersistenceUnitName("testPU")
+                    .setDatabaseURL("", 0, "connectionpooldb").logIn("", "")).isTrue();
+            repo = UserManager.getUserManager().getRepository(PersonRepository.class);
+            repo.saveAndFlushAll(newPeople(8));
+            assertThat(repo.createStream().count()).isEqualTo(8);
+            // the pooled connections are proxies whose class loader cannot see the driver
+            try (var connection = UserManager.getUserManager().openConnection()) {
+                var driverClass = adapter.findDriverClass(connection, "org.h2.jdbc.JdbcConnection");
+                assertThat(driverClass).isNotNull();
+                assertThat(connection).isNotInstanceOf(driverClass);
+                assertThat(connection.unwrap(driverClass)).isInstanceOf(driverClass);
+                assertThat(adapter.findDriverClass(connection, "org.postgresql.PGConnection")).isNull();
+            }
+            var statistics = UserManager.getUserManager().getConnectionPoolStatistics();
+            assertThat(statistics.getAcquired()).isPositive();
+            assertThat(statistics.getTotal()).isBetween(1, 4);
+            UserManager.getUserManager().logOut();
+            assertThat(UserManager.getUserManager().getConnectionPoolStatistics()).isNull();
+        } finally {
+            UserManager.getUserManager().setConnectionPoolConfig(null);
+        }
+    }
+
+    @Test
+    @Order(13)
+    @DisplayName("Testing the repository index")
+    public void RepositoryIndexTest() throws IOException {
+        var index = Files.createTempFile("jpa99", ".index");
+        var thread = Thread.currentThread();
+        var loader = thread.getContextClassLoader();
+        // serves the written index in place of the one generated for the test classes
+        var indexLoader = new ClassLoader(loader) {
+            @Override
+            public Enumeration<URL> getResources(String name) throws IOException {
+                if (name.equals(RepositoryIndexProcessor.INDEX_LOCATION))
+                    return Collections.enumeration(List.of(index.toUri().toURL()));
+                return super.getResources(name);
+            }
+        };
+        try {
+            thread.setContextClassLoader(indexLoader);
+            // the index leaves NoteRepository out, so finding it would mean the package was scanned
+            Files.writeString(index, "Person=" + PersonRepository.class.getName() + "\n");
+            logIn("indexdb");
+            assertThat(UserManager.getUserManager().getRepository(PersonRepository.class)).isNotNull();
+            assertThat(UserManager.getUserManager().getRepository("Note")).isNull();
+            UserManager.getUserManager().logOut();
+            // an entry of a class which no longer exists makes the index stale, the package is scanned instead
+            Files.writeString(index, "Person=" + PersonRepository.class.getName()
+                    + "\nRemoved=" + getClass().getPackageName() + ".RemovedRepository\n");
+            logIn("indexdb");
+            assertThat(UserManager.getUserManager().getRepository(PersonRepository.class)).isNotNull();
+            assertThat(UserManager.getUserManager().getRepository("Note")).isInstanceOf(NoteRepository.class);
+            assertThat(UserManager.getUserManager().getRepository("Removed")).isNull();
+            UserManager.getUserManager().logOut();
+        } finally {
+            thread.setContextClassLoader(loader);
+            Files.delete(index);
+        }
+    }
+
+    @Test
+    @Order(14)
+    @DisplayName("Testing the lookup of repositories")
+    public void RepositoryLookupTest() {
+        repo = logIn("lookupdb");
+        assertThat(UserManager.getUserManager().getRepository("Person")).isSameAs(repo);
+        assertThat(UserManager.getUserManager().getRepository(NoteRepository.class)).isSameAs(UserManager.getUserManager().getRepository("Note"));
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(15)
+    @DisplayName("Testing the entity cache")
+    public void EntityCacheTest() {
+        repo = logIn("cachedb");
+        repo.saveAndFlushAll(newPeople(8));
+        repo.enableCache(16, null);
+        var person = repo.findById(3).orElseThrow();
+        assertThat(repo.findById(3)).containsSame(person);
+        assertThat(repo.getCacheStatistics().getHits()).isEqualTo(1);
+        person.setName(faker.name().fullName());
+        assertThat(repo.saveAndFlush(person).getName()).isEqualTo(person.getName());
+        assertThat(repo.getCacheStatistics().getSize()).isZero();
+        assertThat(repo.findById(4)).isPresent();
+        repo.deleteById(4);
+        assertThat(repo.getCacheStatistics().getSize()).isZero();
+        assertThat(repo.findById(4)).isEmpty();
+        repo.disableCache();
+        assertThat(repo.getCacheStatistics()).isNull();
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(16)
+    @DisplayName("Testing the cache of integral keys")
+    public void LongKeyCacheTest() throws InterruptedException {
+        // keys with distinct slots, the first three in the order the hand of the CLOCK visits them, starting after slot 0
+        var slots = (Integer.highestOneBit(3) << 2) - 1;
+        var used = new HashSet<Integer>(List.of(0));
+        var keys = LongStream.iterate(1, key -> key + 1).filter(key -> used.add(LongKeyCache.hash(key) & slots)).limit(5).toArray();
+        var bySlot = LongStream.of(keys).limit(3).boxed()
+                .sorted(Comparator.comparingInt(key -> LongKeyCache.hash(key) & slots)).mapToLong(Long::longValue).toArray();
+        var cache = new LongKeyCache<String>(3, null);
+        for (var key : bySlot)
+            cache.put(key, "value " + key);
+        // every key was referenced since the last sweep, the hand clears them all and evicts the first one on its second pass
+        cache.put(keys[3], "value " + keys[3]);
+        assertThat(cache.getStatistics().getSize()).isEqualTo(3);
+        assertThat(cache.getStatistics().getEvictions()).isEqualTo(1);
+        assertThat(cache.get(bySlot[0])).isNull();
+        // a key read since the last sweep is spared, the next key which was not is evicted
+        assertThat(cache.get(bySlot[2])).isEqualTo("value " + bySlot[2]);
+        cache.put(keys[4], "value " + keys[4]);
+        assertThat(cache.get(bySlot[1])).isNull();
+        assertThat(cache.get(bySlot[2])).isEqualTo("value " + bySlot[2]);
+        assertThat(cache.get(keys[3])).isEqualTo("value " + keys[3]);
+        assertThat(cache.get(keys[4])).isEqualTo("value " + keys[4]);
+        assertThat(cache.getStatistics().getEvictions()).isEqualTo(2);
+
+        // keys sharing a slot are probed in sequence, removing one shifts the next ones back so they are still found
+        var table = new LongKeyCache<String>(4, null);
+        var mask = (Integer.highestOneBit(4) << 2) - 1;
+        var colliding = LongStream.iterate(0, key -> key + 1)
+                .filter(key -> (LongKeyCache.hash(key) & mask) == (LongKeyCache.hash(0) & mask))
+                .limit(4).toArray();
+        for (var key : colliding)
+            table.put(key, "value " + key);
+        table.invalidate(colliding[0]);
+        assertThat(table.get(colliding[0])).isNull();
+        for (int i = 1; i < colliding.length; i++)
+            assertThat(table.get(colliding[i])).isEqualTo("value " + colliding[i]);
+        table.invalidate(colliding[2]);
+        assertThat(table.get(colliding[1])).isEqualTo("value " + colliding[1]);
+        assertThat(table.get(colliding[3])).isEqualTo("value " + colliding[3]);
+        table.put(colliding[0], "again");
+        assertThat(table.get(colliding[0])).isEqualTo("again");
+        assertThat(table.getStatistics().getSize()).isEqualTo(3);
+
+        var expiring = new LongKeyCache<String>(4, Duration.ofMillis(20));
+        expiring.put(1, "value");
+        assertThat(expiring.get(1)).isEqualTo("value");
+        Thread.sleep(50);
+        assertThat(expiring.get(1)).isNull();
+        assertThat(expiring.getStatistics().getExpirations()).isEqualTo(1);
+        assertThat(expiring.getStatistics().getSize()).isZero();
+
+        // a value read before an invalidation is not cached
+        var generation = cache.generation();
+        cache.invalidate(5L);
+        cache.put(5L, "stale", generation);
+        assertThat(cache.get(5L)).isNull();
+        cache.put(5L, "fresh", cache.generation());
+        assertThat(cache.get(5L)).isEqualTo("fresh");
+    }
+
+    @Test
+    @Order(17)
+    @DisplayName("Testing asynchronous queries")
+    public void AsyncTest() {
+        repo = logIn("asyncdb");
+        var saved = repo.saveAndFlushAll(newPeople(8));
+        var testName = saved.get(2).getName();
+        var counts = new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < 8; i++)
+            counts.add(repo.queryAsync(s -> s.where(person -> person.getName().equals(testName)).count()));
+        for (var count : counts)
+            assertThat(count.join()).isEqualTo(1);
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(18)
+    @DisplayName("Testing read replicas")
+    public void ReplicaTest() {
+        DBAdapter adapter = new H2Adapter();
+        adapter.getExtraProperties().put("Mode", "memory");
+        adapter.addReadReplica("", 0, "replicadb");
+        assertThat(UserManager.getUserManager().setDatabaseAdapter(adapter)
+                .setReplicaRouting(ReplicaRouting.LEAST_IN_FLIGHT)
+                .setPersistenceUnitName("testPU")
+                .setDatabaseURL("", 0, "primarydb").logIn("", "")).isTrue();
+        repo = UserManager.getUserManager().getRepository(PersonRepository.class);
+        var saved = repo.saveAndFlush(new Person().setName(faker.name().fullName()));
+        // nothing replicates the primary in the test, so the replica does not see the write
+        assertThat(repo.findById(saved.getId())).isEmpty();
+        assertThat(repo.createStream().count()).isZero();
+        assertThat(repo.getEntityManager().find(Person.class, saved.getId())).isNotNull();
+        UserManager.getUserManager().logOut();
+        UserManager.getUserManager().setReplicaRouting(ReplicaRouting.ROUND_ROBIN);
+    }
+
+    @Test
+    @Order(19)
+    @DisplayName("Testing the metrics")
+    public void MetricsTest() throws MalformedObjectNameException {
+        repo = logIn("metricsdb");
+        repo.saveAndFlushAll(newPeople(8));
+        assertThat(repo.findById(1)).isPresent();
+        var metrics = UserManager.getUserManager().getRepositoryMetrics("Person");
+        assertThat(metrics).isSameAs(repo.getMetrics());
+        assertThat(metrics.getHistogram(RepositoryOperation.FIND).getCount()).isPositive();
+        assertThat(metrics.getStatistics(RepositoryOperation.SAVE_ALL).getP99Nanos()).isPositive();
+        assertThat(UserManager.getUserManager().getLogInPhaseNanos(LogInPhase.ENTITY_MANAGER_FACTORY)).isPositive();
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(UserManager.JMX_DOMAIN + ":type=Repository,name=" + ObjectName.quote("Person")))).isTrue();
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(20)
+    @DisplayName("Testing the latency histogram")
+    public void LatencyHistogramTest() {
+        // each bucket ends right before the next one starts, up to the last one which ends at the largest duration
+        var last = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+        for (int bucket = 0; bucket < last; bucket++) {
+            var upper = LatencyHistogram.upperBoundOf(bucket);
+            assertThat(LatencyHistogram.bucketOf(upper)).isEqualTo(bucket);
+            assertThat(LatencyHistogram.bucketOf(upper + 1)).isEqualTo(bucket + 1);
+        }
+        assertThat(LatencyHistogram.upperBoundOf(last)).isEqualTo(Long.MAX_VALUE);
+        for (var nanos : new long[]{0, 3, 4, 7, 8, 9, 1_000, 999_999_999, 1L << 40})
+            assertThat(LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(nanos))).isBetween(nanos, nanos + nanos / 4);
+
+        var histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentileNanos(50)).isZero();
+        for (int nanos = 1; nanos <= 100; nanos++)
+            histogram.record(nanos);
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getTotalNanos()).isEqualTo(5050);
+        assertThat(histogram.getMeanNanos()).isEqualTo(50.5);
+        // the smallest duration is in a bucket of its own
+        assertThat(histogram.getPercentileNanos(0)).isEqualTo(1);
+        // the 50th duration falls in the bucket of 48 to 55
+        assertThat(histogram.getPercentileNanos(50)).isEqualTo(55);
+        // the bucket of 96 to 111 is capped by the longest duration
+        assertThat(histogram.getPercentileNanos(99)).isEqualTo(100);
+        assertThat(histogram.getPercentileNanos(100)).isEqualTo(100);
+        for (var percentile : new double[]{-1, 100.5, Double.NaN})
+            Assertions.assertThrows(IllegalArgumentException.class, () -> histogram.getPercentileNanos(percentile));
+
+        // durations beyond the largest power of two go to the last bucket, negative ones are recorded as zero
+        histogram.reset();
+        assertThat(histogram.getCount()).isZero();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertThat(histogram.getMaxNanos()).isEqualTo(Long.MAX_VALUE);
+        assertThat(histogram.getPercentileNanos(50)).isZero();
+        assertThat(histogram.getPercentileNanos(100)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    @Order(21)
+    @DisplayName("Testing projections")
+    public void ProjectionTest() {
+        repo = logIn("projectiondb");
+        var saved = repo.saveAndFlushAll(newPeople(8));
+        var names = repo.findAllAs(PersonName.class, "id", "name");
+        assertThat(names).hasSize(saved.size());
+        assertThat(names).extracting(name -> name.name).contains(saved.get(3).getName());
+        var columns = repo.findAllColumns("name");
+        assertThat(columns).hasSize(saved.size());
+        assertThat(columns.get(0)).hasSize(1);
+        var testName = saved.get(5).getName();
+        assertThat(repo.project(stream -> stream.where(person -> person.getName().equals(testName)).select(Person::getId))).hasSize(1);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repo.findAllColumns("name from Person"));
+        UserManager.getUserManager().logOut();
+    }
+
+    public static class PersonName {
+        private final Integer id;
+        private final String name;
+
+        public PersonName(Integer id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    @Test
+    @Order(22)
+    @DisplayName("Testing bulk insert")
+    public void BulkInsertTest() {
+        repo = logIn("bulkdb");
+        var given = newPeople(8);
+        assertThat(repo.bulkInsert(given)).isEqualTo(given.size());
+        var count = 2500;
+        assertThat(repo.bulkInsert(IntStream.range(0, count).mapToObj(i -> new Person().setName("bulk " + i)))).isEqualTo(count);
+        assertThat(repo.createStream().count()).isEqualTo(given.size() + count);
+        var last = "bulk " + (count - 1);
+        assertThat(repo.createStream().where(person -> person.getName().equals(last)).count()).isEqualTo(1);
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(23)
+    @DisplayName("Testing the foreign keys of the rows written with JDBC")
+    public void ForeignKeyTest() {
+        logIn("foreignkeydb");
+        var factory = UserManager.getUserManager().getEntityManagerFactory();
+        var mapping = EntityTableMapping.of(factory.getMetamodel().entity(Task.class), factory.getPersistenceUnitUtil());
+        assertThat(mapping.getColumns()).containsExactly("id", "parent_id", "title");
+        assertThat(mapping.getColumnTypes()).containsExactly(Integer.class, Integer.class, String.class);
+        var manager = factory.createEntityManager();
+        try {
+            // the fields of an uninitialized proxy are never set, the id must come from the provider
+            var parent = manager.getReference(Task.class, 7);
+            assertThat(factory.getPersistenceUnitUtil().isLoaded(parent)).isFalse();
+            assertThat(mapping.getValues(new Task().setId(8).setTitle("child").setParent(parent))).containsExactly(8, 7, "child");
+            assertThat(mapping.getValues(new Task().setId(9).setTitle("root"))).containsExactly(9, null, "root");
+            assertThat(factory.getPersistenceUnitUtil().isLoaded(parent)).isFalse();
+        } finally {
+            manager.close();
+        }
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(24)
+    @DisplayName("Testing the CSV rows streamed to PostgreSQL COPY")
+    public void CsvEncodingTest() throws IOException {
+        var instant = Timestamp.valueOf("2024-02-29 23:59:58.123456");
+        var rows = List.<Object[]>of(
+                new Object[]{1, "plain", null},
+                new Object[]{2, "say \"hi\", then leave", ""},
+                new Object[]{3, "two\nlines,\r\nthree", new byte[]{0, 15, (byte) 255}},
+                new Object[]{4, instant, java.sql.Date.valueOf("2024-02-29")});
+        var text = new StringBuilder();
+        try (var reader = new PostgreSQLAdapter.CsvReader(rows.iterator())) {
+            // a small buffer reads the rows in several pieces
+            var chars = new char[7];
+            int count;
+            while ((count = reader.read(chars, 0, chars.length)) != -1)
+                text.append(chars, 0, count);
+        }
+        var lines = text.toString().split("\n(?=[0-9\"])");
+        assertThat(lines).hasSize(4);
+        // an unquoted empty value is NULL, an empty string is quoted
+        assertThat(lines[0]).isEqualTo("\"1\",\"plain\",");
+        assertThat(lines[1]).isEqualTo("\"2\",\"say \"\"hi\"\", then leave\",\"\"");
+        assertThat(lines[2]).isEqualTo("\"3\",\"two\nlines,\r\nthree\",\"\\x000fff\"");
+        assertThat(lines[3]).startsWith("\"4\",\"").endsWith("\",\"2024-02-29\"\n");
+        // timestamps carry their offset, so the instant does not depend on the time zone of the session
+        var timestamp = lines[3].substring(5, lines[3].indexOf('"', 5));
+        var parsed = OffsetDateTime.parse(timestamp, DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm:ss.SSSSSSxxx"));
+        assertThat(parsed.toInstant()).isEqualTo(instant.toInstant());
+    }
+
+    @Test
+    @Order(25)
+    @DisplayName("Testing write-behind")
+    public void WriteBehindTest() {
+        repo = logIn("writebehinddb");
+        var saved = repo.saveAndFlush(new Person().setName("before"));
+        var failures = new ArrayList<RuntimeException>();
+        repo.enableWriteBehind(new WriteBehindConfig().setBatchSize(3).setFlushInterval(Duration.ofMinutes(1)),
+                (batch, e) -> failures.add(e));
+        for (int i = 0; i < 2; i++)
+            repo.saveAndFlush(new Person().setName("queued " + i));
+        repo.saveAndFlush(new Person().setId(saved.getId()).setName("first"));
+        repo.saveAndFlush(new Person().setId(saved.getId()).setName("after"));
+        assertThat(repo.findById(saved.getId()).map(Person::getName)).contains("after");
+        repo.flushWriteBehind();
+        assertThat(repo.getPendingWrites()).isZero();
+        assertThat(failures).isEmpty();
+        assertThat(repo.createStream().count()).isEqualTo(3);
+        assertThat(repo.findAllColumns("name")).extracting(row -> row[0]).contains("after").doesNotContain("before", "first");
+        repo.saveAndFlush(new Person().setName(null));
+        repo.disableWriteBehind();
+        assertThat(failures).hasSize(1);
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(26)
+    @DisplayName("Testing deletes in write-behind mode")
+    public void WriteBehindDeleteTest() {
+        repo = logIn("writebehinddeletedb");
+        var saved = new ArrayList<Person>();
+        for (int i = 0; i < 5; i++)
+            saved.add(repo.saveAndFlush(new Person().setName("saved " + i)));
+        var failures = new ArrayList<RuntimeException>();
+        repo.enableWriteBehind(new WriteBehindConfig().setBatchSize(100).setFlushInterval(Duration.ofMinutes(1)),
+                (batch, e) -> failures.add(e));
+        for (var person : saved)
+            repo.saveAndFlush(new Person().setId(person.getId()).setName("queued"));
+        var unsaved = repo.saveAndFlush(new Person().setName("never written"));
+        assertThat(repo.getPendingWrites()).isEqualTo(6);
+        repo.delete(new Person().setId(saved.get(0).getId()).setName("queued"));
+        repo.deleteById(saved.get(1).getId());
+        repo.deleteAllById(List.of(saved.get(2).getId()));
+        repo.deleteAll(List.of(saved.get(3), unsaved));
+        assertThat(repo.getPendingWrites()).isEqualTo(1);
+        assertThat(repo.findById(saved.get(0).getId())).isEmpty();
+        repo.flushWriteBehind();
+        assertThat(failures).isEmpty();
+        assertThat(repo.findAllColumns("name")).extracting(row -> row[0]).containsExactly("queued");
+        repo.saveAndFlush(new Person().setId(saved.get(4).getId()).setName("queued again"));
+        repo.saveAndFlush(new Person().setName("never written"));
+        repo.deleteEverything();
+        assertThat(repo.getPendingWrites()).isZero();
+        repo.disableWriteBehind();
+        assertThat(failures).isEmpty();
+        assertThat(repo.createStream().count()).isZero();
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(27)
+    @DisplayName("Testing the write-behind queue")
+    public void WriteBehindQueueTest() throws InterruptedException {
+        var config = new WriteBehindConfig().setMaxPending(2).setBatchSize(10)
+                .setFlushInterval(Duration.ofMinutes(1)).setOfferTimeout(Duration.ofMillis(50));
+        var written = new ConcurrentLinkedQueue<List<Person>>();
+        var writing = new CountDownLatch(1);
+        var resume = new CountDownLatch(1);
+        var buffer = new WriteBehindBuffer<Person>(config, Person::getId, batch -> {
+            writing.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.add(batch);
+        }, (batch, e) -> {
+        });
+        var first = new Person().setId(1).setName("first");
+        buffer.offer(first);
+        buffer.offer(new Person().setId(2).setName("second"));
+        assertThatThrownBy(() -> buffer.offer(new Person().setId(3).setName("third")))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("The write-behind queue is full");
+        // an entity already waiting is replaced even when the queue is full
+        var replaced = new Person().setId(1).setName("replaced");
+        buffer.offer(replaced);
+        assertThat(buffer.size()).isEqualTo(2);
+        var flush = CompletableFuture.runAsync(buffer::flushAll);
+        writing.await();
+        // the entities of the batch being written stay visible until it is committed
+        assertThat(buffer.size()).isZero();
+        assertThat(buffer.pending(1)).isSameAs(replaced);
+        buffer.offer(new Person().setId(3).setName("third"));
+        resume.countDown();
+        flush.join();
+        assertThat(buffer.pending(1)).isNull();
+        assertThat(buffer.pending(3)).isNull();
+        assertThat(written).hasSize(2);
+        assertThat(written.peek()).extracting(Person::getName).containsExactly("replaced", "second");
+        buffer.close();
+        assertThatThrownBy(() -> buffer.offer(first)).isInstanceOf(IllegalStateException.class);
+
+        var failed = new ArrayList<List<Person>>();
+        var errors = new ArrayList<RuntimeException>();
+        var saved = new ArrayList<Person>();
+        var failing = new WriteBehindBuffer<Person>(new WriteBehindConfig().setBatchSize(1).setFlushInterval(Duration.ofMinutes(1)),
+                Person::getId, batch -> {
+            if (batch.get(0).getName() == null)
+                throw new IllegalArgumentException("The name cannot be null");
+            saved.addAll(batch);
+        }, (batch, e) -> {
+            failed.add(batch);
+            errors.add(e);
+            // a failing error handler must not stop the next batches
+            throw new IllegalStateException(e);
+        });
+        var invalid = new Person().setId(1);
+        failing.offer(invalid);
+        failing.offer(new Person().setId(2).setName("valid"));
+        failing.flushAll();
+        assertThat(failed).containsExactly(List.of(invalid));
+        assertThat(errors).hasSize(1).allMatch(e -> e instanceof IllegalArgumentException);
+        assertThat(saved).extracting(Person::getName).containsExactly("valid");
+        assertThat(failing.pending(1)).isNull();
+        failing.close();
+    }
+
+    @Test
+    @Order(28)
+    @DisplayName("Testing updates of the changed attributes")
+    public void PartialUpdateTest() throws SQLException {
+        repo = logIn("partialdb");
+        repo.saveAndFlushAll(newPeople(8));
+        var detached = repo.findById(5).orElseThrow();
+        repo.getEntityManager().detach(detached);
+        detached.setName("detached update");
+        assertThat(repo.saveAndFlush(detached)).isSameAs(detached);
+        assertThat(repo.findAllColumns("name")).extracting(row -> row[0]).contains("detached update");
+        var notes = UserManager.getUserManager().getRepository(NoteRepository.class);
+        var id = notes.saveAndFlush(new Note().setTitle("draft").setText("first")).getId();
+        notes.getEntityManager().clear();
+        var note = notes.findById(id).orElseThrow();
+        notes.getEntityManager().detach(note);
+        var managed = notes.findById(id).orElseThrow();
+        try (var connection = UserManager.getUserManager().openConnection();
+             var statement = connection.prepareStatement("UPDATE Note SET text = 'concurrent' WHERE id = ?")) {
+            statement.setInt(1, id);
+            assertThat(statement.executeUpdate()).isEqualTo(1);
+        }
+        var statistics = UserManager.getUserManager().getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            // the snapshot taken when loading the note lets the title be written alone, without reading the row first
+            statistics.clear();
+            note.setTitle("final");
+            assertThat(notes.saveAndFlush(note)).isSameAs(note);
+            assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+            assertThat(statistics.getEntityLoadCount()).isZero();
+            assertThat(notes.getEntityManager().contains(managed)).isFalse();
+            assertThat(notes.findAllColumns("title", "text")).containsExactly(new Object[]{"final", "concurrent"});
+            // without a snapshot the note is merged, which reads it first
+            statistics.clear();
+            var unsaved = new Note().setId(id).setTitle("merged").setText("merged");
+            assertThat(notes.saveAndFlush(unsaved)).isNotSameAs(unsaved);
+            assertThat(statistics.getEntityLoadCount()).isEqualTo(1);
+            assertThat(notes.findAllColumns("title", "text")).containsExactly(new Object[]{"merged", "merged"});
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(29)
+    @DisplayName("Testing the lifecycle callbacks of saves and deletes")
+    public void CallbackTest() {
+        logIn("callbackdb");
+        var memos = UserManager.getUserManager().getRepository(MemoRepository.class);
+        var first = memos.saveAndFlush(new Memo().setText("first")).getId();
+        var second = memos.saveAndFlush(new Memo().setText("second")).getId();
+        memos.getEntityManager().clear();
+        Memo.CALLBACKS.clear();
+        // entities with callbacks are merged and loaded before being deleted, so their callbacks run
+        var loaded = memos.findById(first).orElseThrow();
+        memos.getEntityManager().detach(loaded);
+        memos.saveAndFlush(loaded.setText("changed"));
+        memos.deleteById(second);
+        assertThat(Memo.CALLBACKS).containsExactly("update " + first, "remove " + second);
+        assertThat(memos.findAllColumns("text")).extracting(row -> row[0]).containsExactly("changed");
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(30)
+    @DisplayName("Testing read-only reads")
+    public void ReadOnlyTest() {
+        repo = logIn("readonlydb");
+        var saved = repo.saveAndFlushAll(newPeople(8));
+        var testName = saved.get(2).getName();
+        var readOnly = repo.readOnly(() -> repo.findById(saved.get(1).getId())).orElseThrow();
+        assertThat(readOnly.getName()).isEqualTo(saved.get(1).getName());
+        assertThat(repo.getEntityManager().contains(readOnly)).isFalse();
+        assertThat(repo.isReadOnly()).isFalse();
+        repo.setReadOnly(true);
+        try {
+            assertThat(repo.createStream().where(person -> person.getName().equals(testName)).count()).isEqualTo(1);
+            assertThat(repo.findAllById(List.of(saved.get(0).getId(), saved.get(1).getId()))).hasSize(2);
+        } finally {
+            repo.setReadOnly(false);
+        }
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(31)
+    @DisplayName("Testing the query cache")
+    public void QueryCacheTest() {
+        repo = logIn("querycachedb");
+        repo.saveAndFlushAll(newPeople(8));
+        UserManager.getUserManager().enableQueryCache(8, null);
+        try {
+            var minId = 1;
+            CacheableQuery<Person, Long> count = stream -> stream.where(person -> person.getId() >= minId).count();
+            var before = repo.queryCached(count);
+            assertThat(before).isEqualTo(8);
+            assertThat(repo.queryCached(count)).isEqualTo(before);
+            assertThat(UserManager.getUserManager().getQueryCacheStatistics().getHits()).isEqualTo(1);
+            repo.deleteById(1);
+            assertThat(repo.queryCached(count)).isEqualTo(before - 1);
+        } finally {
+            UserManager.getUserManager().disableQueryCache();
+        }
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(32)
+    @DisplayName("Testing chunked processing")
+    public void ChunkedProcessingTest() {
+        repo = logIn("chunkdb");
+        var count = 2500;
+        assertThat(repo.bulkInsert(IntStream.range(0, count).mapToObj(i -> new Person().setName("bulk " + i)))).isEqualTo(count);
+        var chunks = new ArrayList<Integer>();
+        var progress = new ConcurrentLinkedQueue<Integer>();
+        var processing = repo.processInChunks(batch -> {
+            batch.forEach(person -> person.setName(person.getName().toUpperCase(Locale.ROOT)));
+            synchronized (chunks) {
+                chunks.add(batch.size());
+            }
+        }, new ChunkedProcessingConfig().setChunkSize(300).setParallelism(3)
+                .setProgressListener(running -> progress.add(running.getProcessedChunks())));
+        assertThat(processing.getResult().join()).isEqualTo(count);
+        assertThat(chunks).hasSize(9).allMatch(size -> size <= 300);
+        assertThat(processing.getProcessedChunks()).isEqualTo(9);
+        assertThat(processing.getRetries()).isZero();
+        // called once per chunk, after it was counted
+        assertThat(progress).hasSize(9).allMatch(chunk -> chunk >= 1 && chunk <= 9).contains(9);
+        var last = "bulk " + (count - 1);
+        var upper = last.toUpperCase(Locale.ROOT);
+        assertThat(repo.findAllColumns("name")).extracting(row -> row[0]).contains(upper).doesNotContain(last);
+
+        // the second chunk always fails, it is rolled back and retried, then the processing fails without starting the next chunks
+        var attempts = new ArrayList<Integer>();
+        var failing = repo.processInChunks(batch -> {
+            attempts.add(batch.get(0).getId());
+            batch.forEach(person -> person.setName("failed"));
+            if (attempts.size() > 1)
+                throw new IllegalStateException("The chunk cannot be processed");
+        }, new ChunkedProcessingConfig().setChunkSize(300).setParallelism(1).setMaxRetries(2));
+        assertThatThrownBy(() -> failing.getResult().join()).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(attempts).containsExactly(1, 301, 301, 301);
+        assertThat(failing.getRetries()).isEqualTo(2);
+        assertThat(failing.getProcessedChunks()).isEqualTo(1);
+        assertThat(failing.getProcessedEntities()).isEqualTo(300);
+        assertThat(repo.findAllColumns("name")).extracting(row -> row[0]).filteredOn("failed"::equals).hasSize(300);
+
+        // cancelling after the first chunk leaves the other ranges unprocessed
+        var cancelled = repo.processInChunks(batch -> batch.forEach(person -> person.setName("cancelled")),
+                new ChunkedProcessingConfig().setChunkSize(300).setParallelism(1).setProgressListener(ChunkedProcessing::cancel));
+        assertThatThrownBy(() -> cancelled.getResult().join()).hasCauseInstanceOf(CancellationException.class);
+        assertThat(cancelled.isCancelled()).isTrue();
+        assertThat(cancelled.getProcessedChunks()).isEqualTo(1);
+        assertThat(repo.findAllColumns("name")).extracting(row -> row[0]).filteredOn("cancelled"::equals).hasSize(300);
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(33)
+    @DisplayName("Testing asynchronous log in")
+    public void AsyncLogInTest() {
+        DBAdapter adapter = new H2Adapter();
+        adapter.getExtraProperties().put("Mode", "memory");
+        assertThat(UserManager.getUserManager().setDatabaseAdapter(adapter)
+                .setPersistenceUnitName("testPU")
+                .setDatabaseURL("", 0, "asynclogindb").logInAsync("", "").join()).isTrue();
+        assertThat(UserManager.getUserManager().getLogInPhaseNanos(LogInPhase.REPOSITORY_SCAN)).isPositive();
+        repo = UserManager.getUserManager().getRepository(PersonRepository.class);
+        assertThat(repo.saveAndFlush(new Person().setName(faker.name().fullName())).getId()).isNotNull();
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(34)
+    @DisplayName("Testing native statements")
+    public void NativeStatementTest() throws SQLException {
+        repo = logIn("nativedb");
+        var adapter = UserManager.getUserManager().getDatabaseAdapter();
+        assertThat(UserManager.getUserManager().getRoles()).containsExactly("1");
+        adapter.registerNativeStatement(new NativeStatement("createUser", "CREATE USER IF NOT EXISTS JPA99_TEST PASSWORD 'before'"));
+        UserManager.getUserManager().executeNative("createUser");
+        UserManager.getUserManager().changePassword("jpa99_test", "it's new");
+        try (var connection = DriverManager.getConnection("jdbc:h2:mem:nativedb", "jpa99_test", "it's new")) {
+            assertThat(connection.isValid(1)).isTrue();
+        }
+        // the native statements are cached with the physical connection and closed with it
+        PreparedStatement cached;
+        try (var pool = new ConnectionPool("jdbc:h2:mem:statementpooldb", "", "", adapter, new ConnectionPoolConfig().setMinSize(1).setMaxSize(1))) {
+            try (var connection = pool.getConnection()) {
+                cached = pool.prepareCached(connection, "SELECT 1");
+                assertThat(pool.prepareCached(connection, "SELECT 1")).isSameAs(cached);
+            }
+            try (var connection = pool.getConnection()) {
+                assertThat(pool.prepareCached(connection, "SELECT 1")).isSameAs(cached);
+                assertThat(cached.isClosed()).isFalse();
+            }
+            try (var connection = DriverManager.getConnection("jdbc:h2:mem:statementpooldb", "", "")) {
+                assertThat(pool.prepareCached(connection, "SELECT 1")).isNull();
+            }
+        }
+        assertThat(cached.isClosed()).isTrue();
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(35)
+    @DisplayName("Testing upserts")
+    public void UpsertTest() {
+        repo = logIn("upsertdb");
+        var saved = repo.saveAndFlushAll(newPeople(8));
+        var upserted = List.of(new Person().setId(saved.get(0).getId()).setName("upserted"), new Person().setId(100_000).setName("inserted"));
+        assertThat(repo.upsertAll(upserted)).isEqualTo(2);
+        assertThat(repo.createStream().count()).isEqualTo(saved.size() + 1);
+        assertThat(repo.findAllColumns("name")).extracting(row -> row[0]).contains("upserted", "inserted");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repo.upsertAll(List.of(new Person().setName("no id"))));
+        UserManager.getUserManager().logOut();
+    }
+
+    @Test
+    @Order(36)
+    @DisplayName("Testing snapshots")
+    public void SnapshotTest() throws IOException, SQLException {
+        repo = logIn("exportdb");
+        repo.saveAndFlushAll(newPeople(8));
+        repo.upsertAll(List.of(new Person().setId(100_000).setName("inserted")));
+        var total = 9L;
+        var snapshots = Files.createTempDirectory("jpa99-snapshots");
+        try {
+            assertThat(UserManager.getUserManager().exportSnapshots(snapshots)).containsEntry("Person", total);
+            // exporting again replaces the files, the temporary files they were written into are gone
+            assertThat(UserManager.getUserManager().exportSnapshots(snapshots)).containsEntry("Person", total);
+            try (var files = Files.list(snapshots)) {
+                assertThat(files.map(file -> file.getFileName().toString())).allMatch(name -> name.endsWith(".snapshot"));
+            }
+            UserManager.getUserManager().logOut();
+            repo = logIn("snapshotdb");
+            assertThat(UserManager.getUserManager().importSnapshots(snapshots)).containsEntry("Person", total);
+            assertThat(repo.createStream().count()).isEqualTo(total);
+            assertThat(repo.findById(100_000).map(Person::getName)).contains("inserted");
+        } finally {
+            try (var files = Files.list(snapshots)) {
+                for (var file : files.collect(Collectors.toList()))
+                    Files.delete(file);
+            }
+            Files.delete(snapshots);
+        }
+        // the identity column was restarted after the largest imported id
+        assertThat(repo.saveAndFlush(new Person().setName("after import")).getId()).isGreaterThan(100_000);
+        try (var connection = UserManager.getUserManager().openConnection(); var statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE Person ALTER COLUMN id RESTART WITH 1");
+            UserManager.getUserManager().getDatabaseAdapter().restartIdentity(connection, "Person", "id");
+        }
+        assertThat(repo.saveAndFlush(new Person().setName("after restart")).getId()).isGreaterThan(100_001);
+        UserManager.getUserManager().logOut();
+    }
+
+    private PersonRepository logIn(String database) {
+        DBAdapter adapter = new H2Adapter();
+        adapter.getExtraProperties().put("Mode", "memory");
+        assertThat(UserManager.getUserManager().setDatabaseAdapter(adapter)
+                .setPersistenceUnitName("testPU")
+                .setDatabaseURL("", 0, database).logIn("", "")).isTrue();
+        return UserManager.getUserManager().getRepository(PersonRepository.class);
+    }
+
+    private List<Person> newPeople(int count) {
+        var persons = new ArrayList<Person>();
+        for (int i = 0; i < count; i++)
+            persons.add(new Person().setName(faker.name().fullName()));
+        return persons;
+    }
 }
@@ -0,0 +1,52 @@
+package io.github.ossnass.jpa99;
+
+import javax.persistence.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@Entity
+@Table(name = "Memo")
+public class Memo {
+
+    /**
+     * The lifecycle callbacks run so far, as "callback id"
+     */
+    static final List<String> CALLBACKS = new CopyOnWriteArrayList<>();
+
+    private Integer id;
+    private String text;
+
+    @Id
+    @Basic
+    @Column(name = "id", nullable = false)
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    public Integer getId() {
+        return id;
+    }
+
+    public Memo setId(Integer id) {
+        this.id = id;
+        return this;
+    }
+
+    @Basic
+    @Column(name = "text", length = 200, nullable = false)
+    public String getText() {
+        return text;
+    }
+
+    public Memo setText(String text) {
+        this.text = text;
+        return this;
+    }
+
+    @PreUpdate
+    void preUpdate() {
+        CALLBACKS.add("update " + id);
+    }
+
+    @PreRemove
+    void preRemove() {
+        CALLBACKS.add("remove " + id);
+    }
+}
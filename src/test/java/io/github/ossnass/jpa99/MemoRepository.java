@@ -0,0 +1,14 @@
+package io.github.ossnass.jpa99;
+
+@Repository("Memo")
+public class MemoRepository extends JPARepository<Memo, Integer> {
+    @Override
+    public Class<Memo> entityClass() {
+        return Memo.class;
+    }
+
+    @Override
+    public Class<Integer> idClass() {
+        return Integer.class;
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.ossnass.jpa99;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = "Note")
+public class Note {
+
+    private Integer id;
+    private String title;
+    private String text;
+
+    @Id
+    @Basic
+    @Column(name = "id", nullable = false)
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    public Integer getId() {
+        return id;
+    }
+
+    public Note setId(Integer id) {
+        this.id = id;
+        return this;
+    }
+
+    @Basic
+    @Column(name = "title", length = 50, nullable = false)
+    public String getTitle() {
+        return title;
+    }
+
+    public Note setTitle(String title) {
+        this.title = title;
+        return this;
+    }
+
+    @Basic
+    @Column(name = "text", length = 200, nullable = false)
+    public String getText() {
+        return text;
+    }
+
+    public Note setText(String text) {
+        this.text = text;
+        return this;
+    }
+}
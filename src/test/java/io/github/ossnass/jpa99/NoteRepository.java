@@ -0,0 +1,14 @@
+package io.github.ossnass.jpa99;
+
+@Repository("Note")
+public class NoteRepository extends JPARepository<Note, Integer> {
+    @Override
+    public Class<Note> entityClass() {
+        return Note.class;
+    }
+
+    @Override
+    public Class<Integer> idClass() {
+        return Integer.class;
+    }
+}
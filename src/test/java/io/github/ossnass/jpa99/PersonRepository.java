@@ -1,6 +1,12 @@
 package io.github.ossnass.jpa99;
 
-@Repository("Person")
+import org.jinq.jpa.JPAJinqStream;
+import org.jinq.orm.stream.JinqStream;
+
+import java.util.List;
+import java.util.function.Function;
+
+@Repository(value = "Person", warmUp = true)
 public class PersonRepository extends JPARepository<Person, Integer> {
     @Override
     public Class<Person> entityClass() {
@@ -11,4 +17,10 @@ public class PersonRepository extends JPARepository<Person, Integer> {
     public Class<Integer> idClass() {
         return Integer.class;
     }
+
+    @Override
+    protected List<Function<JPAJinqStream<Person>, JinqStream<?>>> warmUpQueries() {
+        String name = "";
+        return List.of(stream -> stream.where(person -> person.getName().equals(name)));
+    }
 }
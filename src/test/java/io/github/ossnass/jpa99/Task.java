@@ -0,0 +1,46 @@
+package io.github.ossnass.jpa99;
+
+import javax.persistence.*;
+
+@Entity
+@Table(name = "Task")
+public class Task {
+
+    @Id
+    @Column(name = "id", nullable = false)
+    private Integer id;
+
+    @Column(name = "title", length = 50, nullable = false)
+    private String title;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "parent_id")
+    private Task parent;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public Task setId(Integer id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public Task setTitle(String title) {
+        this.title = title;
+        return this;
+    }
+
+    public Task getParent() {
+        return parent;
+    }
+
+    public Task setParent(Task parent) {
+        this.parent = parent;
+        return this;
+    }
+}